@@ -8,6 +8,7 @@
 package com.aokyu.settings;
 
 import com.aokyu.settings.provider.SettingsContract;
+import com.aokyu.settings.provider.StringSetCodec;
 
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -20,6 +21,7 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.util.Set;
 
 /**
  * This class holds a key-value pair.
@@ -43,6 +45,36 @@ import java.io.ObjectOutputStream;
      */
     private static final int FALSE = 0;
 
+    /**
+     * The type tag for boolean values.
+     */
+    public static final int TYPE_BOOLEAN = SettingsContract.TYPE_BOOLEAN;
+
+    /**
+     * The type tag for float values.
+     */
+    public static final int TYPE_FLOAT = SettingsContract.TYPE_FLOAT;
+
+    /**
+     * The type tag for integer values.
+     */
+    public static final int TYPE_INTEGER = SettingsContract.TYPE_INTEGER;
+
+    /**
+     * The type tag for long values.
+     */
+    public static final int TYPE_LONG = SettingsContract.TYPE_LONG;
+
+    /**
+     * The type tag for string values.
+     */
+    public static final int TYPE_STRING = SettingsContract.TYPE_STRING;
+
+    /**
+     * The type tag for other values that are stored as serialized objects.
+     */
+    public static final int TYPE_OBJECT = SettingsContract.TYPE_OBJECT;
+
     /**
      * The unique ID for this setting.
      */
@@ -54,109 +86,121 @@ import java.io.ObjectOutputStream;
     private String mKey;
 
     /**
-     * The value type of this setting.
+     * The type tag of this setting.
+     * The tag tells which of {@link #mBits} or {@link #mValue} holds the value.
      */
-    private String mType;
+    private int mType;
 
     /**
-     * The value of this setting.
+     * The value of this setting if the value is a primitive.
+     * Booleans are stored as {@link #TRUE} or {@link #FALSE},
+     * and floats are stored as their raw bits.
+     */
+    private long mBits;
+
+    /**
+     * The value of this setting if the value is a string or an object.
      */
     private Object mValue;
 
     /**
      * Returns the {@link Setting} created from the current row of the {@link Cursor}.
-     * Note that null fields are not read out.
+     * Use {@link CursorDecoder} to convert multiple rows of the same cursor.
      *
      * @param cursor The {@link Cursor} indicating the row to convert a {@link Setting}.
      * @return the {@link Setting} created from the current row of the {@link Cursor}.
      */
     public static Setting cursorRowToSetting(Cursor cursor) {
-        ContentValues values = new ContentValues();
-        String[] columns = cursor.getColumnNames();
-        int length = columns.length;
-        for (int i = 0; i < length; i++) {
-            if (!cursor.isNull(i)) {
-                int type = cursor.getType(i);
-                switch (type) {
-                    case Cursor.FIELD_TYPE_FLOAT:
-                        values.put(columns[i], cursor.getFloat(i));
-                        break;
-                    case Cursor.FIELD_TYPE_INTEGER:
-                        values.put(columns[i], cursor.getInt(i));
-                        break;
-                    case Cursor.FIELD_TYPE_STRING:
-                        values.put(columns[i], cursor.getString(i));
-                        break;
-                    case Cursor.FIELD_TYPE_BLOB:
-                        values.put(columns[i], cursor.getBlob(i));
-                        break;
-                    case Cursor.FIELD_TYPE_NULL:
-                    default:
-                        break;
-                }
-            }
-        }
-
-        return new Setting(values);
+        return new CursorDecoder(cursor).decode();
     }
 
     /**
-     * Creates a new setting from the {@link ContentValues}.
+     * Returns the {@link Setting} decoded from the query parameters of a change notification.
      *
-     * @param values The {@link ContentValues}.
-     */
-    public Setting(ContentValues values) {
-        mId = values.getAsLong(SettingsContract._ID);
-        mKey = values.getAsString(SettingsContract.KEY);
-        mType = values.getAsString(SettingsContract.TYPE);
-        if (mType.equals(Boolean.class.getName())) {
-            mValue = getValueAsBoolean(values);
-        } else if (mType.equals(Float.class.getName())) {
-            mValue = getValueAsFloat(values);
-        } else if (mType.equals(Integer.class.getName())) {
-            mValue = getValueAsInteger(values);
-        } else if (mType.equals(Long.class.getName())) {
-            mValue = getValueAsLong(values);
-        } else if (mType.equals(String.class.getName())) {
-            mValue = getValueAsString(values);
-        } else {
-            mValue = getValueAsObject(values);
+     * @param id The row ID of the setting.
+     * @param key The key of the setting.
+     * @param type The string representation of the type code.
+     * @param value The string representation of the value.
+     * @return the {@link Setting}, or null if the notification does not carry a value
+     *         that can be decoded.
+     * @see SettingsContract#NOTIFY_VALUE
+     */
+    public static Setting fromNotification(long id, String key, String type, String value) {
+        if (key == null || type == null || value == null) {
+            return null;
         }
-    }
 
-    private Object getValueAsBoolean(ContentValues values) {
-        Integer value = values.getAsInteger(SettingsContract.VALUE);
-        if (value.equals(TRUE)) {
-            return Boolean.TRUE;
-        } else if (value.equals(FALSE)) {
-            return Boolean.FALSE;
-        } else {
-            throw new IllegalStateException("invalid value");
+        Setting setting;
+        try {
+            setting = new Setting(id, key, Integer.parseInt(type));
+        } catch (NumberFormatException e) {
+            return null;
         }
-    }
 
-    private Object getValueAsFloat(ContentValues values) {
-        Float value = values.getAsFloat(SettingsContract.VALUE);
-        return value;
+        try {
+            switch (setting.mType) {
+                case TYPE_BOOLEAN:
+                case TYPE_INTEGER:
+                    setting.mBits = Integer.parseInt(value);
+                    break;
+                case TYPE_FLOAT:
+                    setting.mBits = Float.floatToRawIntBits(Float.parseFloat(value));
+                    break;
+                case TYPE_LONG:
+                    setting.mBits = Long.parseLong(value);
+                    break;
+                case TYPE_STRING:
+                    setting.mValue = value;
+                    break;
+                case TYPE_OBJECT:
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return setting;
     }
 
-    private Object getValueAsInteger(ContentValues values) {
-        Integer value = values.getAsInteger(SettingsContract.VALUE);
-        return value;
+    /**
+     * Returns the type tag for the value.
+     *
+     * @param value The value of a setting.
+     * @return the type tag for the value type.
+     */
+    private static int typeOf(Object value) {
+        if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof Integer) {
+            return TYPE_INTEGER;
+        } else if (value instanceof Long) {
+            return TYPE_LONG;
+        } else if (value instanceof String) {
+            return TYPE_STRING;
+        } else {
+            return TYPE_OBJECT;
+        }
     }
 
-    private Object getValueAsLong(ContentValues values) {
-        Long value = values.getAsLong(SettingsContract.VALUE);
-        return value;
-    }
+    /**
+     * Returns the object decoded from the bytes.
+     * A set of strings is decoded by {@link StringSetCodec}, and other objects are
+     * deserialized.
+     *
+     * @param bytes The encoded object.
+     * @return the decoded object, or null if the bytes cannot be decoded.
+     */
+    /* package */ static Object decodeObject(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
 
-    private Object getValueAsString(ContentValues values) {
-        String value = values.getAsString(SettingsContract.VALUE);
-        return value;
-    }
+        if (StringSetCodec.isEncoded(bytes)) {
+            return StringSetCodec.decode(bytes);
+        }
 
-    private Object getValueAsObject(ContentValues values) {
-        byte[] bytes = values.getAsByteArray(SettingsContract.VALUE);
         ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
         ObjectInput input = null;
         Object object = null;
@@ -177,98 +221,272 @@ import java.io.ObjectOutputStream;
         return object;
     }
 
+    /**
+     * Returns the encoded bytes of the object.
+     * A set of strings is encoded by {@link StringSetCodec}, and other objects are
+     * serialized.
+     *
+     * @param value The object to encode.
+     * @return the encoded bytes, or null if the object cannot be encoded.
+     */
+    @SuppressWarnings("unchecked")
+    /* package */ static byte[] encodeObject(Object value) {
+        if (StringSetCodec.canEncode(value)) {
+            return StringSetCodec.encode((Set<String>) value);
+        }
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ObjectOutput output = null;
+        byte[] bytes = null;
+        try {
+            output = new ObjectOutputStream(stream);
+            output.writeObject(value);
+            output.flush();
+            bytes = stream.toByteArray();
+        } catch (IOException e) {
+        } finally {
+            try {
+                stream.close();
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException ex) {
+            }
+        }
+        return bytes;
+    }
+
+    private Setting(long id, String key, int type) {
+        mId = id;
+        mKey = key;
+        mType = type;
+    }
+
+    /**
+     * Restores a setting from the fields that were read out of a persisted form.
+     *
+     * @param id The unique ID of the setting.
+     * @param key The key of the setting.
+     * @param type The type tag of the value.
+     * @param bits The primitive value of the setting.
+     * @param value The string or object value of the setting.
+     * @return the restored setting.
+     * @see #getType()
+     * @see #getBits()
+     */
+    /* package */ static Setting restore(long id, String key, int type, long bits,
+            Object value) {
+        Setting setting = new Setting(id, key, type);
+        setting.mBits = bits;
+        setting.mValue = value;
+        return setting;
+    }
+
     /**
      * Creates a new setting for the key-value pair.
      *
      * @param key The key of this setting.
      * @param value The value of this setting.
      */
-    public Setting(String key, Object value) {
-        mKey = key;
-        Class<?> clazz = value.getClass();
-        mType = clazz.getName();
+    public Setting(String key, boolean value) {
+        this(NO_ID, key, TYPE_BOOLEAN);
+        mBits = value ? TRUE : FALSE;
+    }
+
+    /**
+     * Creates a new setting for the key-value pair.
+     *
+     * @param key The key of this setting.
+     * @param value The value of this setting.
+     */
+    public Setting(String key, float value) {
+        this(NO_ID, key, TYPE_FLOAT);
+        mBits = Float.floatToRawIntBits(value);
+    }
+
+    /**
+     * Creates a new setting for the key-value pair.
+     *
+     * @param key The key of this setting.
+     * @param value The value of this setting.
+     */
+    public Setting(String key, int value) {
+        this(NO_ID, key, TYPE_INTEGER);
+        mBits = value;
+    }
+
+    /**
+     * Creates a new setting for the key-value pair.
+     *
+     * @param key The key of this setting.
+     * @param value The value of this setting.
+     */
+    public Setting(String key, long value) {
+        this(NO_ID, key, TYPE_LONG);
+        mBits = value;
+    }
+
+    /**
+     * Creates a new setting for the key-value pair.
+     *
+     * @param key The key of this setting.
+     * @param value The value of this setting.
+     */
+    public Setting(String key, String value) {
+        this(NO_ID, key, TYPE_STRING);
         mValue = value;
     }
 
+    /**
+     * Creates a new setting for the key-value pair.
+     * Boxed primitives are unboxed into the primitive storage.
+     *
+     * @param key The key of this setting.
+     * @param value The value of this setting.
+     */
+    public Setting(String key, Object value) {
+        this(NO_ID, key, typeOf(value));
+        switch (mType) {
+            case TYPE_BOOLEAN:
+                mBits = ((Boolean) value) ? TRUE : FALSE;
+                break;
+            case TYPE_FLOAT:
+                mBits = Float.floatToRawIntBits((Float) value);
+                break;
+            case TYPE_INTEGER:
+                mBits = (Integer) value;
+                break;
+            case TYPE_LONG:
+                mBits = (Long) value;
+                break;
+            case TYPE_STRING:
+            case TYPE_OBJECT:
+            default:
+                mValue = value;
+                break;
+        }
+    }
+
     /* package */ long getId() {
         return mId;
     }
 
+    /**
+     * Returns a copy of this setting that has the row ID.
+     *
+     * @param id The row ID of the setting.
+     * @return the copy of this setting.
+     */
+    /* package */ Setting withId(long id) {
+        return restore(id, mKey, mType, mBits, mValue);
+    }
+
     public String getKey() {
         return mKey;
     }
 
-    public Object getValue() {
-        return mValue;
+    /* package */ long getBits() {
+        return mBits;
     }
 
     /**
-     * Returns a {@link ContentValues} for this setting.
+     * Returns the type tag of this setting.
      *
-     * @return a {@link ContentValues} for this setting.
+     * @return the type tag such as {@link #TYPE_INTEGER}.
      */
-    public ContentValues toContentValues() {
-        ContentValues values = new ContentValues();
-        values.put(SettingsContract.KEY, mKey);
-        values.put(SettingsContract.TYPE, mType);
-        if (mType.equals(Boolean.class.getName())) {
-            putBoolean(values, (Boolean) mValue);
-        } else if (mType.equals(Float.class.getName())) {
-            putFloat(values, (Float) mValue);
-        } else if (mType.equals(Integer.class.getName())) {
-            putInteger(values, (Integer) mValue);
-        } else if (mType.equals(Long.class.getName())) {
-            putLong(values, (Long) mValue);
-        } else if (mType.equals(String.class.getName())) {
-            putString(values, (String) mValue);
-        } else {
-            putObject(values, mValue);
-        }
-        return values;
+    public int getType() {
+        return mType;
     }
 
-    private void putBoolean(ContentValues values, Boolean value) {
-        if (value) {
-            values.put(SettingsContract.VALUE, TRUE);
-        } else {
-            values.put(SettingsContract.VALUE, FALSE);
-        }
+    public boolean getBoolean() {
+        return mBits == TRUE;
     }
 
-    private void putFloat(ContentValues values, Float value) {
-        values.put(SettingsContract.VALUE, value);
+    public float getFloat() {
+        return Float.intBitsToFloat((int) mBits);
     }
 
-    private void putInteger(ContentValues values, Integer value) {
-        values.put(SettingsContract.VALUE, value);
+    public int getInt() {
+        return (int) mBits;
     }
 
-    private void putLong(ContentValues values, Long value) {
-        values.put(SettingsContract.VALUE, value);
+    public long getLong() {
+        return mBits;
     }
 
-    private void putString(ContentValues values, String value) {
-        values.put(SettingsContract.VALUE, value);
+    /**
+     * Returns the value of this setting.
+     * Note that a primitive value is boxed on each call.
+     *
+     * @return the value of this setting.
+     */
+    public Object getValue() {
+        switch (mType) {
+            case TYPE_BOOLEAN:
+                return Boolean.valueOf(getBoolean());
+            case TYPE_FLOAT:
+                return Float.valueOf(getFloat());
+            case TYPE_INTEGER:
+                return Integer.valueOf(getInt());
+            case TYPE_LONG:
+                return Long.valueOf(getLong());
+            case TYPE_STRING:
+            case TYPE_OBJECT:
+            default:
+                return mValue;
+        }
     }
 
-    private void putObject(ContentValues values, Object value) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        ObjectOutput output = null;
-        try {
-            output = new ObjectOutputStream(stream);
-            output.writeObject(value);
-            byte[] bytes = stream.toByteArray();
-            values.put(SettingsContract.VALUE, bytes);
-        } catch (IOException e) {
-        } finally {
-            try {
-                stream.close();
-                if (output != null) {
-                    output.close();
+    /**
+     * Compares the type and the value of the given setting with this setting.
+     *
+     * @param setting The setting to compare with.
+     * @return true if the given setting has the same type and value as this setting.
+     */
+    public boolean valueEquals(Setting setting) {
+        if (mType != setting.mType || mBits != setting.mBits) {
+            return false;
+        }
+
+        if (mValue == null) {
+            return setting.mValue == null;
+        } else {
+            return mValue.equals(setting.mValue);
+        }
+    }
+
+    /**
+     * Returns a {@link ContentValues} for this setting.
+     *
+     * @return a {@link ContentValues} for this setting.
+     */
+    public ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(SettingsContract.KEY, mKey);
+        values.put(SettingsContract.TYPE, mType);
+        switch (mType) {
+            case TYPE_BOOLEAN:
+            case TYPE_INTEGER:
+                values.put(SettingsContract.VALUE, getInt());
+                break;
+            case TYPE_FLOAT:
+                values.put(SettingsContract.VALUE, getFloat());
+                break;
+            case TYPE_LONG:
+                values.put(SettingsContract.VALUE, getLong());
+                break;
+            case TYPE_STRING:
+                values.put(SettingsContract.VALUE, (String) mValue);
+                break;
+            case TYPE_OBJECT:
+            default:
+                byte[] bytes = encodeObject(mValue);
+                if (bytes != null) {
+                    values.put(SettingsContract.VALUE, bytes);
                 }
-          } catch (IOException ex) {
-          }
+                break;
         }
+        return values;
     }
 
     @Override
@@ -300,8 +518,78 @@ import java.io.ObjectOutputStream;
             .append("[")
             .append("KEY=").append(mKey)
             .append(", TYPE=").append(mType)
-            .append(", VALUE=").append(mValue)
+            .append(", VALUE=").append(getValue())
             .toString();
         return str;
     }
+
+    /**
+     * This class converts rows of a {@link Cursor} into {@link Setting}s.
+     * The column indices are resolved once, and each value is decoded directly from
+     * the typed getter of the cursor into the primitive storage.
+     */
+    /* package */ static final class CursorDecoder {
+
+        private final Cursor mCursor;
+
+        private final int mIdIndex;
+        private final int mKeyIndex;
+        private final int mTypeIndex;
+        private final int mValueIndex;
+
+        /**
+         * Creates a decoder for the cursor.
+         *
+         * @param cursor The {@link Cursor} that has {@link SettingsContract#KEY},
+         *        {@link SettingsContract#TYPE} and {@link SettingsContract#VALUE} columns.
+         *        The {@link SettingsContract#_ID} column is optional.
+         */
+        public CursorDecoder(Cursor cursor) {
+            mCursor = cursor;
+            mIdIndex = cursor.getColumnIndex(SettingsContract._ID);
+            mKeyIndex = cursor.getColumnIndexOrThrow(SettingsContract.KEY);
+            mTypeIndex = cursor.getColumnIndexOrThrow(SettingsContract.TYPE);
+            mValueIndex = cursor.getColumnIndexOrThrow(SettingsContract.VALUE);
+        }
+
+        /**
+         * Returns the {@link Setting} created from the current row of the cursor.
+         *
+         * @return the {@link Setting} created from the current row of the cursor.
+         */
+        public Setting decode() {
+            Cursor cursor = mCursor;
+            long id = (mIdIndex >= 0) ? cursor.getLong(mIdIndex) : NO_ID;
+            Setting setting = new Setting(id, cursor.getString(mKeyIndex),
+                    cursor.getInt(mTypeIndex));
+
+            int valueIndex = mValueIndex;
+            switch (setting.mType) {
+                case TYPE_BOOLEAN:
+                    int value = cursor.getInt(valueIndex);
+                    if (value != TRUE && value != FALSE) {
+                        throw new IllegalStateException("invalid value");
+                    }
+                    setting.mBits = value;
+                    break;
+                case TYPE_FLOAT:
+                    setting.mBits = Float.floatToRawIntBits(cursor.getFloat(valueIndex));
+                    break;
+                case TYPE_INTEGER:
+                    setting.mBits = cursor.getInt(valueIndex);
+                    break;
+                case TYPE_LONG:
+                    setting.mBits = cursor.getLong(valueIndex);
+                    break;
+                case TYPE_STRING:
+                    setting.mValue = cursor.getString(valueIndex);
+                    break;
+                case TYPE_OBJECT:
+                default:
+                    setting.mValue = decodeObject(cursor.getBlob(valueIndex));
+                    break;
+            }
+            return setting;
+        }
+    }
 }
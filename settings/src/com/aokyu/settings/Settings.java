@@ -14,17 +14,19 @@ import com.aokyu.settings.task.SerialExecutor;
 
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -44,6 +46,13 @@ public class Settings implements SharedPreferences {
 
     private static final String TASK_NAME = "Settings";
 
+    /**
+     * Indicates whether a setting is read from the database individually if the setting
+     * is accessed before the cache has loaded all settings.
+     * @see #setLoadOnDemand(boolean)
+     */
+    private static volatile boolean sLoadOnDemand = true;
+
     private static volatile SharedPreferences sHelper;
 
     /**
@@ -52,6 +61,19 @@ public class Settings implements SharedPreferences {
      */
     private static volatile SerialExecutor sExecutor = new SerialExecutor(TASK_NAME);
 
+    /**
+     * The time to wait for further commits before applying a group commit.
+     * Group commits are disabled if the window is zero.
+     * @see #setGroupCommit(long, int)
+     */
+    private static volatile long sGroupCommitWindowMillis = 0;
+
+    /**
+     * The maximum number of commits merged into a group commit.
+     * @see #setGroupCommit(long, int)
+     */
+    private static volatile int sMaxGroupCommits = 0;
+
     private Context mContext;
 
     /**
@@ -64,6 +86,19 @@ public class Settings implements SharedPreferences {
      */
     private SettingsChangeListeners mChangeListeners;
 
+    private final Object mGroupCommitLock = new Object();
+
+    /**
+     * The commit into which commits applied within the group commit window are merged.
+     * This field is null if no group commit is pending.
+     */
+    private Commit mGroupCommit;
+
+    /**
+     * The number of commits merged into {@link #mGroupCommit}.
+     */
+    private int mGroupCommitCount;
+
     /**
      * Returns an implementation of {@link SharedPreferences} using {@link ContentProvider}.
      *
@@ -79,14 +114,63 @@ public class Settings implements SharedPreferences {
         return sHelper;
     }
 
+    /**
+     * Enables or disables group commits for {@link Editor#apply()}.
+     * Commits applied within the window are merged into a single batch that is written
+     * in one transaction, and a later write to a key wins over earlier ones.
+     * Note that a group commit is applied as soon as it has merged the maximum number
+     * of commits, and that {@link Editor#commit()} applies a pending group commit first.
+     *
+     * @param windowMillis The time to wait for further commits in milliseconds.
+     *        Zero disables group commits.
+     * @param maxCommits The maximum number of commits merged into a group commit.
+     *        Zero or a negative value means no limit.
+     */
+    public static void setGroupCommit(long windowMillis, int maxCommits) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("window should not be negative");
+        }
+
+        sGroupCommitWindowMillis = windowMillis;
+        sMaxGroupCommits = maxCommits;
+    }
+
+    /**
+     * Enables or disables the on-demand loading of settings.
+     * If enabled, a setting accessed before all settings have been loaded is read from
+     * the database individually, which shortens the first access on a cold start with
+     * a large table. If disabled, the access waits for all settings to be loaded.
+     * This method should be called before {@link #getInstance(Context)}, since the mode
+     * is fixed when the instance is created. The on-demand loading is enabled by default.
+     *
+     * @param enabled true if settings should be loaded on demand.
+     */
+    public static void setLoadOnDemand(boolean enabled) {
+        sLoadOnDemand = enabled;
+    }
+
+    /**
+     * Replaces the executor that applies commits to the database.
+     * This method is intended for tests that run the commits by themselves.
+     *
+     * @param executor The new executor.
+     * @return the executor that has been replaced.
+     */
+    /* package */ static SerialExecutor setExecutor(SerialExecutor executor) {
+        SerialExecutor previous = sExecutor;
+        sExecutor = executor;
+        return previous;
+    }
+
     /**
      * Create a new instance of {@link SharedPreferences}.
+     * Note that {@link #getInstance(Context)} should be used except for tests.
      *
      * @param context The application context.
      */
-    private Settings(Context context) {
+    /* package */ Settings(Context context) {
         mContext = context;
-        mCache = new SettingsCache(mContext);
+        mCache = new SettingsCache(mContext, sLoadOnDemand);
         mChangeListeners = new SettingsChangeListeners(mContext, this);
         mCache.addCacheListener(mChangeListeners);
     }
@@ -95,13 +179,20 @@ public class Settings implements SharedPreferences {
     protected void finalize() throws Throwable {
         // Just in case some objects are not release.
         try {
-            mCache.destroy();
-            mChangeListeners.destroy();
+            destroy();
         } finally {
             super.finalize();
         }
     }
 
+    /**
+     * Releases the cache and the listeners of this instance.
+     */
+    /* package */ void destroy() {
+        mCache.destroy();
+        mChangeListeners.destroy();
+    }
+
     @Override
     public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener l) {
         mChangeListeners.registerOnSharedPreferenceChangeListener(l);
@@ -126,9 +217,8 @@ public class Settings implements SharedPreferences {
     public boolean getBoolean(String key, boolean defValue) {
         Setting setting = mCache.get(key);
         if (setting != null) {
-            Object value = setting.getValue();
-            if (value instanceof Boolean) {
-                return (Boolean) value;
+            if (setting.getType() == Setting.TYPE_BOOLEAN) {
+                return setting.getBoolean();
             } else {
                 throw new IllegalStateException("setting is " + setting.getClass());
             }
@@ -141,9 +231,8 @@ public class Settings implements SharedPreferences {
     public float getFloat(String key, float defValue) {
         Setting setting = mCache.get(key);
         if (setting != null) {
-            Object value = setting.getValue();
-            if (value instanceof Float) {
-                return (Float) value;
+            if (setting.getType() == Setting.TYPE_FLOAT) {
+                return setting.getFloat();
             } else {
                 throw new IllegalStateException("setting is " + setting.getClass());
             }
@@ -156,9 +245,8 @@ public class Settings implements SharedPreferences {
     public int getInt(String key, int defValue) {
         Setting setting = mCache.get(key);
         if (setting != null) {
-            Object value = setting.getValue();
-            if (value instanceof Integer) {
-                return (Integer) value;
+            if (setting.getType() == Setting.TYPE_INTEGER) {
+                return setting.getInt();
             } else {
                 throw new IllegalStateException("setting is " + setting.getClass());
             }
@@ -171,9 +259,8 @@ public class Settings implements SharedPreferences {
     public long getLong(String key, long defValue) {
         Setting setting = mCache.get(key);
         if (setting != null) {
-            Object value = setting.getValue();
-            if (value instanceof Long) {
-                return (Long) value;
+            if (setting.getType() == Setting.TYPE_LONG) {
+                return setting.getLong();
             } else {
                 throw new IllegalStateException("setting is " + setting.getClass());
             }
@@ -186,9 +273,8 @@ public class Settings implements SharedPreferences {
     public String getString(String key, String defValue) {
         Setting setting = mCache.get(key);
         if (setting != null) {
-            Object value = setting.getValue();
-            if (value instanceof String) {
-                return (String) value;
+            if (setting.getType() == Setting.TYPE_STRING) {
+                return (String) setting.getValue();
             } else {
                 throw new IllegalStateException("setting is " + setting.getClass());
             }
@@ -285,7 +371,60 @@ public class Settings implements SharedPreferences {
      */
     private void onApply(Commit commit) {
         commit.cache(mCache);
-        sExecutor.execute(commit);
+
+        long window = sGroupCommitWindowMillis;
+        if (window <= 0) {
+            sExecutor.execute(commit);
+            return;
+        }
+
+        synchronized (mGroupCommitLock) {
+            if (mGroupCommit == null) {
+                mGroupCommit = new Commit(mContext);
+                mGroupCommitCount = 0;
+                // The delayed task takes the group commit, so that no more commits are
+                // merged into it once it has been executed.
+                sExecutor.execute(new GroupCommitTask(this, mGroupCommit), window);
+            }
+
+            mGroupCommit.merge(commit);
+            mGroupCommitCount++;
+
+            int maxCommits = sMaxGroupCommits;
+            if (maxCommits > 0 && mGroupCommitCount >= maxCommits) {
+                // The delayed task will find that the group commit has already been taken.
+                sExecutor.execute(takeGroupCommit());
+            }
+        }
+    }
+
+    /**
+     * Closes the pending group commit so that no more commits are merged into it.
+     *
+     * @return the pending group commit, or null if no group commit is pending.
+     */
+    private Commit takeGroupCommit() {
+        synchronized (mGroupCommitLock) {
+            Commit groupCommit = mGroupCommit;
+            mGroupCommit = null;
+            mGroupCommitCount = 0;
+            return groupCommit;
+        }
+    }
+
+    /**
+     * Closes the group commit if it is still pending.
+     *
+     * @param groupCommit The group commit to close.
+     * @return the group commit, or null if it has already been closed.
+     */
+    private Commit takeGroupCommit(Commit groupCommit) {
+        synchronized (mGroupCommitLock) {
+            if (mGroupCommit != groupCommit) {
+                return null;
+            }
+            return takeGroupCommit();
+        }
     }
 
     /**
@@ -298,6 +437,11 @@ public class Settings implements SharedPreferences {
     private boolean onCommit(Commit commit) {
         try {
             commit.cache(mCache);
+            // Changes applied earlier must not overwrite this commit later.
+            Commit groupCommit = takeGroupCommit();
+            if (groupCommit != null) {
+                groupCommit.execute();
+            }
             commit.execute();
         } catch (InterruptedException e) {
             return false;
@@ -338,41 +482,39 @@ public class Settings implements SharedPreferences {
             return this;
         }
 
-        private Editor put(String key, Object value) {
-            Setting setting = new Setting(key, value);
-            ContentValues values = setting.toContentValues();
-            mCommit.add(new InsertOrUpdate(mContext, values));
+        private Editor put(Setting setting) {
+            mCommit.add(new InsertOrUpdate(mContext, setting));
             return this;
         }
 
         @Override
         public Editor putBoolean(String key, boolean value) {
-            return put(key, value);
+            return put(new Setting(key, value));
         }
 
         @Override
         public Editor putFloat(String key, float value) {
-            return put(key, value);
+            return put(new Setting(key, value));
         }
 
         @Override
         public Editor putInt(String key, int value) {
-            return put(key, value);
+            return put(new Setting(key, value));
         }
 
         @Override
         public Editor putLong(String key, long value) {
-            return put(key, value);
+            return put(new Setting(key, value));
         }
 
         @Override
         public Editor putString(String key, String value) {
-            return put(key, value);
+            return put(new Setting(key, value));
         }
 
         @Override
         public Editor putStringSet(String key, Set<String> values) {
-            return put(key, values);
+            return put(new Setting(key, (Object) values));
         }
 
         @Override
@@ -406,11 +548,40 @@ public class Settings implements SharedPreferences {
         CLEAR
     }
 
+    /**
+     * A task to execute a group commit at the end of its window.
+     */
+    private static final class GroupCommitTask extends AbstractTask {
+
+        private Settings mSettings;
+        private Commit mGroupCommit;
+
+        public GroupCommitTask(Settings settings, Commit groupCommit) {
+            mSettings = settings;
+            mGroupCommit = groupCommit;
+        }
+
+        @Override
+        public void execute() throws InterruptedException {
+            // The group commit may have been taken by a commit or by the limit of commits.
+            Commit groupCommit = mSettings.takeGroupCommit(mGroupCommit);
+            if (groupCommit != null) {
+                groupCommit.execute();
+            }
+        }
+    }
+
     /**
      * A task to commit changes.
      */
     private static final class Commit extends AbstractTask {
 
+        /**
+         * The number of operations between yield points of a batch.
+         * The provider rejects a batch that has too many operations between yield points.
+         */
+        private static final int OPERATIONS_PER_YIELD_POINT = 100;
+
         private ContentResolver mContentResolver;
 
         /**
@@ -421,9 +592,16 @@ public class Settings implements SharedPreferences {
         private Clear mClearOperation;
 
         /**
-         * Edit tasks excluding a cleanup task.
+         * Edit tasks excluding a cleanup task, keyed by the key of each edit.
+         * Only the last edit for a key is kept.
          */
-        private List<Edit> mEditOperations = new ArrayList<Edit>();
+        private Map<String, Edit> mEditOperations = new LinkedHashMap<String, Edit>();
+
+        /**
+         * The cache that holds the pending settings of this commit until it has completed.
+         * @see #cache(SettingsCache)
+         */
+        private SettingsCache mCache;
 
         /**
          * Creates a new commit.
@@ -442,7 +620,10 @@ public class Settings implements SharedPreferences {
             switch (type) {
                 case INSERT_OR_UPDATE:
                 case REMOVE:
-                    mEditOperations.add(edit);
+                    String key = edit.getKey();
+                    // The edit is moved to the end to keep the order of the last edits.
+                    mEditOperations.remove(key);
+                    mEditOperations.put(key, edit);
                     break;
                 case CLEAR:
                     mClearOperation = (Clear) edit;
@@ -452,31 +633,53 @@ public class Settings implements SharedPreferences {
             }
         }
 
+        /**
+         * Merges the operations of a later commit into this commit.
+         * A cleanup of the later commit discards the edits of this commit.
+         *
+         * @param commit The commit applied after this commit.
+         */
+        public synchronized void merge(Commit commit) {
+            if (commit.mClearOperation != null) {
+                mClearOperation = commit.mClearOperation;
+                mEditOperations.clear();
+            }
+
+            for (Edit edit : commit.mEditOperations.values()) {
+                add(edit);
+            }
+
+            if (commit.mCache != null) {
+                mCache = commit.mCache;
+            }
+        }
+
         /**
          * The cache operation should be executed on the same execution context as
          * {@link Editor#apply()} or {@link Editor#commit()}.
          */
         public void cache(SettingsCache cache) {
+            mCache = cache;
             if (mClearOperation != null) {
-                cache.clear();
+                mClearOperation.setTicket(cache.clear());
             }
 
-            for (Edit edit : mEditOperations) {
+            for (Edit edit : mEditOperations.values()) {
                 EditType type = edit.getType();
                 switch (type) {
                     case INSERT_OR_UPDATE:
                         InsertOrUpdate editOperation = (InsertOrUpdate) edit;
-                        String editKey = editOperation.getKey();
-                        Object editValue = editOperation.getValue();
-                        if (!TextUtils.isEmpty(editKey)) {
-                            cache.put(editKey, editValue);
+                        Setting editSetting = editOperation.getSetting();
+                        if (!TextUtils.isEmpty(editSetting.getKey())) {
+                            cache.put(editSetting);
+                            editOperation.setPending(editSetting);
                         }
                         break;
                     case REMOVE:
                         Remove removeOperation = (Remove) edit;
                         String removeKey = removeOperation.getKey();
                         if (!TextUtils.isEmpty(removeKey)) {
-                            cache.remove(removeKey);
+                            removeOperation.setPending(cache.remove(removeKey));
                         }
                         break;
                     case CLEAR:
@@ -488,34 +691,59 @@ public class Settings implements SharedPreferences {
 
         /**
          * Executes this commit for the database.
+         * The operations are cleared after the execution, so executing this commit again
+         * does nothing. The pending settings of the operations are released in the cache
+         * when the batch has completed, whether or not it has succeeded.
          */
         @Override
-        public void execute() throws InterruptedException {
+        public synchronized void execute() throws InterruptedException {
+            if (mClearOperation == null && mEditOperations.isEmpty()) {
+                return;
+            }
+
             ArrayList<ContentProviderOperation> operations =
                     new ArrayList<ContentProviderOperation>();
+            // The edits in the same order as their operations.
+            List<Edit> edits = new ArrayList<Edit>();
 
             // The cleanup operation should be done first.
             if (mClearOperation != null) {
                 ContentProviderOperation operation = mClearOperation.build();
                 if (operation != null) {
                     operations.add(operation);
+                    edits.add(mClearOperation);
                 }
                 mClearOperation = null;
             }
 
-            for (Edit edit : mEditOperations) {
+            for (Edit edit : mEditOperations.values()) {
+                edit.setYieldAllowed(operations.size() > 0
+                        && operations.size() % OPERATIONS_PER_YIELD_POINT == 0);
                 ContentProviderOperation operation = edit.build();
                 if (operation != null) {
+                    if (mCache != null) {
+                        edit.prepare(mCache);
+                    }
                     operations.add(operation);
+                    edits.add(edit);
                 }
             }
             mEditOperations.clear();
 
             String authority = SettingsContract.CONTENT_URI.getAuthority();
+            ContentProviderResult[] results = null;
             try {
-                mContentResolver.applyBatch(authority, operations);
+                results = mContentResolver.applyBatch(authority, operations);
             } catch (RemoteException e) {
             } catch (OperationApplicationException e) {
+            } finally {
+                if (mCache != null) {
+                    for (int i = 0; i < edits.size(); i++) {
+                        ContentProviderResult result =
+                                (results != null && i < results.length) ? results[i] : null;
+                        edits.get(i).complete(mCache, result);
+                    }
+                }
             }
         }
     }
@@ -525,10 +753,40 @@ public class Settings implements SharedPreferences {
      */
     private static abstract class Edit {
 
-        private static final Uri CONTENT_URI = SettingsContract.CONTENT_URI;
+        /**
+         * Changes are notified with their values, so that other processes need not query
+         * the changed rows.
+         */
+        private static final Uri CONTENT_URI = SettingsContract.CONTENT_URI.buildUpon()
+                .appendQueryParameter(SettingsContract.NOTIFY_VALUE, String.valueOf(true))
+                .build();
+
+        /**
+         * Inserts are resolved against existing keys by the provider,
+         * so edits need not query the current rows.
+         */
+        private static final Uri UPSERT_URI = CONTENT_URI.buildUpon()
+                .appendQueryParameter(SettingsContract.UPSERT, String.valueOf(true))
+                .build();
 
         protected ContentResolver mContentResolver;
 
+        /**
+         * Indicates whether the provider may yield its transaction before this operation.
+         */
+        private boolean mYieldAllowed;
+
+        /**
+         * The setting that the cache holds as pending until this operation has completed,
+         * or null if the cache holds nothing for this operation.
+         */
+        protected Setting mPending;
+
+        /**
+         * The setting stored in the cache for the key before this operation is written.
+         */
+        protected Setting mStored;
+
         /**
          * Returns the type of this operation.
          * @return the type of this operation.
@@ -545,8 +803,49 @@ public class Settings implements SharedPreferences {
             mContentResolver = context.getContentResolver();
         }
 
+        /**
+         * Returns the key of the setting this operation edits.
+         * @return the key, or null if this operation does not edit a single setting.
+         */
+        public String getKey() {
+            return null;
+        }
+
+        public void setYieldAllowed(boolean yieldAllowed) {
+            mYieldAllowed = yieldAllowed;
+        }
+
+        public void setPending(Setting pending) {
+            mPending = pending;
+        }
+
+        /**
+         * Remembers the state of the cache before this operation is written.
+         * @param cache The cache that holds the pending setting of this operation.
+         */
+        public void prepare(SettingsCache cache) {
+            if (mPending != null) {
+                mStored = cache.getStored(mPending.getKey());
+            }
+        }
+
+        /**
+         * Releases the pending setting of this operation in the cache.
+         * @param cache The cache that holds the pending setting of this operation.
+         * @param result The result of this operation, or null if the commit failed.
+         */
+        public void complete(SettingsCache cache, ContentProviderResult result) {}
+
         protected ContentProviderOperation newInsert(ContentValues values) {
             return ContentProviderOperation.newInsert(CONTENT_URI)
+                    .withYieldAllowed(mYieldAllowed)
+                    .withValues(values)
+                    .build();
+        }
+
+        protected ContentProviderOperation newUpsert(ContentValues values) {
+            return ContentProviderOperation.newInsert(UPSERT_URI)
+                    .withYieldAllowed(mYieldAllowed)
                     .withValues(values)
                     .build();
         }
@@ -554,6 +853,7 @@ public class Settings implements SharedPreferences {
         protected ContentProviderOperation newUpdate(
                 String selection, String[] selectionArgs, ContentValues values) {
             return ContentProviderOperation.newUpdate(CONTENT_URI)
+                    .withYieldAllowed(mYieldAllowed)
                     .withSelection(selection, selectionArgs)
                     .withValues(values)
                     .build();
@@ -561,6 +861,7 @@ public class Settings implements SharedPreferences {
 
         protected ContentProviderOperation newDelete(String selection, String[] selectionArgs) {
             return ContentProviderOperation.newDelete(CONTENT_URI)
+                    .withYieldAllowed(mYieldAllowed)
                     .withSelection(selection, selectionArgs)
                     .build();
         }
@@ -571,29 +872,22 @@ public class Settings implements SharedPreferences {
      */
     private static final class InsertOrUpdate extends Edit {
 
+        private Setting mSetting;
         private ContentValues mValues;
 
-        public InsertOrUpdate(Context context, ContentValues values) {
+        public InsertOrUpdate(Context context, Setting setting) {
             super(context);
-            mValues = values;
+            mSetting = setting;
+            mValues = setting.toContentValues();
         }
 
-        private String getKey() {
-            if (mValues != null) {
-                if (mValues.containsKey(SettingsContract.KEY)) {
-                    return mValues.getAsString(SettingsContract.KEY);
-                }
-            }
-            return null;
+        private Setting getSetting() {
+            return mSetting;
         }
 
-        private Object getValue() {
-            if (mValues != null) {
-                if (mValues.containsKey(SettingsContract.VALUE)) {
-                    return mValues.get(SettingsContract.VALUE);
-                }
-            }
-            return null;
+        @Override
+        public String getKey() {
+            return mSetting.getKey();
         }
 
         @Override
@@ -603,33 +897,21 @@ public class Settings implements SharedPreferences {
 
         @Override
         public ContentProviderOperation build() {
-            String key = mValues.getAsString(SettingsContract.KEY);
-            Cursor cursor = null;
-            try {
-                cursor = SettingsLoader.loadCursor(mContentResolver, key);
-                if (cursor == null) {
-                    return null;
-                }
-
-                int count = cursor.getCount();
-                if (count == 0) {
-                    return newInsert(mValues);
-                }
+            return newUpsert(mValues);
+        }
 
-                if (cursor.moveToNext()) {
-                    Setting setting = Setting.cursorRowToSetting(cursor);
-                    long id = setting.getId();
-                    String where = SettingsContract._ID + "=?";
-                    String[] selectionArgs = new String[] { String.valueOf(id) };
-                    return newUpdate(where, selectionArgs, mValues);
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+        @Override
+        public void complete(SettingsCache cache, ContentProviderResult result) {
+            if (mPending == null) {
+                return;
             }
 
-            return null;
+            // The provider returns the row even if the write is skipped as unchanged.
+            long id = Setting.NO_ID;
+            if (result != null && result.uri != null) {
+                id = ContentUris.parseId(result.uri);
+            }
+            cache.onWriteCompleted(mPending, id, mStored);
         }
     }
 
@@ -645,7 +927,8 @@ public class Settings implements SharedPreferences {
             mKey = key;
         }
 
-        private String getKey() {
+        @Override
+        public String getKey() {
             return mKey;
         }
 
@@ -660,6 +943,13 @@ public class Settings implements SharedPreferences {
             String[] selectionArgs = new String[] { mKey };
             return newDelete(where, selectionArgs);
         }
+
+        @Override
+        public void complete(SettingsCache cache, ContentProviderResult result) {
+            if (mPending != null) {
+                cache.onRemoveCompleted(mPending, result != null, mStored);
+            }
+        }
     }
 
     /**
@@ -667,10 +957,20 @@ public class Settings implements SharedPreferences {
      */
     private static class Clear extends Edit {
 
+        /**
+         * The ticket of the clear in the cache, or zero if the cache has not been cleared.
+         * @see SettingsCache#clear()
+         */
+        private long mTicket;
+
         public Clear(Context context) {
             super(context);
         }
 
+        public void setTicket(long ticket) {
+            mTicket = ticket;
+        }
+
         @Override
         public EditType getType() {
             return EditType.CLEAR;
@@ -680,5 +980,12 @@ public class Settings implements SharedPreferences {
         public ContentProviderOperation build() {
             return newDelete(null, null);
         }
+
+        @Override
+        public void complete(SettingsCache cache, ContentProviderResult result) {
+            if (mTicket != 0) {
+                cache.onClearCompleted(mTicket, result != null);
+            }
+        }
     }
 }
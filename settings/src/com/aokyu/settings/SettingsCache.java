@@ -12,17 +12,25 @@ import com.aokyu.settings.provider.SettingsContract;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The memory cache for settings to access quickly.
@@ -33,43 +41,149 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * However, the cache might not be synchronized if you immediately access
  * records after updating records.
  *
+ * Reads never take the monitor of this cache. The indexes are concurrent maps and
+ * only writers are serialized with each other, so getters do not block behind
+ * change notifications or commits once the initial loading has completed.
+ *
  * The cache is constructed through the change notifications of
  * the {@link com.aokyu.settings.provider.SettingsProvider}.
  * That is, this cache depends on the implementation of
  * the {@link com.aokyu.settings.provider.SettingsProvider}.
- * @see com.aokyu.settings.provider.SettingsProvider#notifyChange(Set)
+ * @see com.aokyu.settings.provider.SettingsProvider#notifyChange(java.util.Collection)
  */
 /* package */ class SettingsCache {
 
+    private static final String OBSERVER_THREAD_NAME = "SettingsObserver";
+
     private Context mContext;
     private ContentResolver mContentResolver;
 
-    private boolean mLoaded = false;
+    /**
+     * Indicates whether the initial loading has completed.
+     * This flag is read without locking on the fast path of getters.
+     */
+    private volatile boolean mLoaded = false;
+
+    /**
+     * Released when the initial loading has completed.
+     */
+    private final CountDownLatch mLoadingLatch = new CountDownLatch(1);
+
+    /**
+     * Indicates whether a miss during the initial loading is resolved by loading
+     * the setting for the key only.
+     * @see #loadOnDemand(String)
+     */
+    private final boolean mLoadOnDemand;
 
     /**
-     * The memory cache for settings.
+     * The memory cache for settings indexed by key.
      */
-    private Map<Uri, Setting> mMap = new ConcurrentHashMap<Uri, Setting>();
+    private Map<String, Setting> mKeyMap = new ConcurrentHashMap<String, Setting>();
+
+    /**
+     * The reverse index from the row ID of a setting to its key.
+     * This index is used to find a cached setting from the {@link Uri} of a change notification.
+     */
+    private Map<Long, String> mIdMap = new ConcurrentHashMap<Long, String>();
 
     /**
      * The memory cache for settings that are currently changing on the database.
+     * A setting is kept until the commit that writes it has completed, and a removed key
+     * is mapped to a {@link Tombstone} until the commit that deletes it has completed.
+     * The entries are compared by identity, so that a commit releases only its own entry.
+     */
+    private ConcurrentMap<String, Setting> mTempMap = new ConcurrentHashMap<String, Setting>();
+
+    /**
+     * The settings written by commits that completed during the initial loading, keyed by
+     * key. The loaded records of these keys might have been read before the commits.
+     * A {@link Tombstone} indicates a removal that has not been notified to the listeners.
+     * This map is guarded by the monitor of this cache.
+     */
+    private Map<String, Setting> mCommittedSettings = new HashMap<String, Setting>();
+
+    /**
+     * The number of clears requested by {@link #clear()}.
+     * This field is written while holding the monitor of this cache.
      */
-    private Map<String, Object> mTempMap = new ConcurrentHashMap<String, Object>();
+    private volatile long mRequestedClears;
+
+    /**
+     * The number of requested clears whose commits have completed.
+     * All settings in the indexes are hidden while a clear is pending.
+     * This field is written while holding the monitor of this cache.
+     */
+    private volatile long mCompletedClears;
+
+    /**
+     * The number of clears that have been committed to the database.
+     * Records read before a clear has been committed must not be put into the indexes.
+     * This field is written while holding the monitor of this cache.
+     */
+    private volatile long mClearGeneration;
+
+    /**
+     * The generation of this cache that is incremented after every mutation.
+     * @see #getAllAsMap()
+     */
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    /**
+     * The last map returned by {@link #getAllAsMap()}.
+     * The map is reused until the generation of this cache changes.
+     */
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * The snapshot file to load settings without querying all records on a cold start.
+     * This field is null if the snapshot is not available.
+     */
+    private SettingsSnapshot mSnapshotFile;
+
+    /**
+     * The change sequence of the settings provider up to which this cache has been
+     * synchronized through the loading or catching up.
+     * @see #catchUp()
+     */
+    private volatile SettingsLoader.Sequence mSequence = SettingsLoader.Sequence.NONE;
 
     private SettingsObserver mObserver;
 
+    /**
+     * The thread on which change notifications are received and applied to the cache.
+     */
+    private HandlerThread mObserverThread;
+
+    /**
+     * The handler to dispatch cache changes to listeners on the main thread.
+     */
+    private Handler mMainHandler;
+
     private List<CacheListener> mCacheListeners = new CopyOnWriteArrayList<CacheListener>();
 
     /**
      * Create a new memory cache for settings.
-     * Note that the cache becomes available after loading.
+     * Note that the cache becomes available after loading unless the on-demand loading
+     * is enabled.
      *
      * @param context The application context.
+     * @param loadOnDemand true if a setting that has not been loaded yet should be read
+     *        from the database individually instead of waiting for the initial loading.
      */
-    public SettingsCache(Context context) {
+    public SettingsCache(Context context, boolean loadOnDemand) {
         mContext = context;
+        mLoadOnDemand = loadOnDemand;
         mContentResolver = mContext.getContentResolver();
-        mObserver = new SettingsObserver(mContext, this);
+        File cacheDir = mContext.getCacheDir();
+        if (cacheDir != null) {
+            mSnapshotFile = new SettingsSnapshot(cacheDir);
+        }
+        mMainHandler = new Handler(mContext.getMainLooper());
+        mObserverThread = new HandlerThread(OBSERVER_THREAD_NAME,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mObserverThread.start();
+        mObserver = new SettingsObserver(mContext, this, new Handler(mObserverThread.getLooper()));
         mContentResolver.registerContentObserver(SettingsContract.CONTENT_URI, true, mObserver);
         startLoadingFromDatabase();
     }
@@ -79,10 +193,6 @@ import java.util.concurrent.CopyOnWriteArrayList;
      * Note that the operation will be executed asynchronously.
      */
     private void startLoadingFromDatabase() {
-        synchronized (this) {
-            mLoaded = false;
-        }
-
         Thread loader = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -94,14 +204,148 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
     /**
      * Loads settings from the database into the cache.
+     * The snapshot file is used instead of the database if no change has been committed
+     * since the snapshot was written. An outdated snapshot is brought up to date with
+     * the change log if the log still has all changes since the snapshot.
+     */
+    private void loadFromDatabase() {
+        // The records loaded across a committed clear are dropped. The changes after
+        // the clear are applied by change notifications once the loading has completed.
+        long clearGeneration = mClearGeneration;
+        // The sequence must be read before loading records. A change committed during
+        // the loading only makes the written snapshot outdated.
+        SettingsLoader.Sequence sequence = SettingsLoader.loadSequence(mContentResolver);
+        SettingsSnapshot.Contents contents = null;
+        if (mSnapshotFile != null && sequence.isAvailable()) {
+            contents = mSnapshotFile.read();
+        }
+
+        List<Setting> settings = null;
+        boolean loadedFromSnapshot = false;
+        // A snapshot of another epoch was written for a database that no longer exists.
+        if (contents != null && contents.sequence.epoch == sequence.epoch) {
+            if (contents.sequence.value == sequence.value) {
+                settings = contents.settings;
+                loadedFromSnapshot = true;
+            } else if (contents.sequence.value < sequence.value) {
+                settings = applyChanges(contents.settings, contents.sequence.value);
+            }
+        }
+
+        if (settings == null) {
+            settings = SettingsLoader.loadAll(mContentResolver);
+        }
+
+        List<Setting> removedSettings = new ArrayList<Setting>();
+        synchronized (this) {
+            if (settings != null && clearGeneration == mClearGeneration) {
+                for (Setting setting : settings) {
+                    // The commits that completed during the loading are newer than the
+                    // records read before them, and are already in the indexes.
+                    Setting committed = mCommittedSettings.get(setting.getKey());
+                    if (committed == null) {
+                        putIntoIndex(setting);
+                    } else if (committed instanceof Tombstone) {
+                        removedSettings.add(setting);
+                    }
+                }
+            }
+            mCommittedSettings.clear();
+            mLoaded = true;
+        }
+        mSequence = sequence;
+        invalidateSnapshot();
+        mLoadingLatch.countDown();
+
+        for (Setting removed : removedSettings) {
+            dispatchRemoved(removed);
+        }
+
+        if (!loadedFromSnapshot && settings != null
+                && mSnapshotFile != null && sequence.isAvailable()) {
+            mSnapshotFile.write(sequence, settings);
+        }
+    }
+
+    /**
+     * Returns the settings with the changes committed after the sequence applied.
+     *
+     * @param settings The settings synchronized up to the sequence.
+     * @param since The sequence up to which the settings are synchronized.
+     * @return the updated settings, or null if the change log no longer has all changes
+     *         after the sequence.
+     */
+    private List<Setting> applyChanges(List<Setting> settings, long since) {
+        List<Setting> changed = new ArrayList<Setting>();
+        List<Long> deleted = new ArrayList<Long>();
+        if (!SettingsLoader.loadChanges(mContentResolver, since, changed, deleted)) {
+            return null;
+        }
+
+        // The log might have been compacted while reading it.
+        long oldestSequence = SettingsLoader.loadOldestSequence(mContentResolver);
+        if (oldestSequence == SettingsLoader.NO_SEQUENCE || oldestSequence > since) {
+            return null;
+        }
+
+        Map<Long, Setting> map = new LinkedHashMap<Long, Setting>(settings.size());
+        for (Setting setting : settings) {
+            map.put(setting.getId(), setting);
+        }
+        for (Setting setting : changed) {
+            map.put(setting.getId(), setting);
+        }
+        for (Long id : deleted) {
+            map.remove(id);
+        }
+        return new ArrayList<Setting>(map.values());
+    }
+
+    /**
+     * Catches up with the changes committed since the cache was last synchronized.
+     * This method is used when change notifications might have been lost,
+     * and should be called on the observer thread.
      */
-    private synchronized void loadFromDatabase() {
-        Map<Uri, Setting> map = SettingsLoader.loadAll(mContentResolver);
-        if (map != null) {
-            mMap.putAll(map);
+    private void catchUp() {
+        awaitLoading();
+        SettingsLoader.Sequence since = mSequence;
+        SettingsLoader.Sequence sequence = SettingsLoader.loadSequence(mContentResolver);
+        if (!sequence.isAvailable() || sequence.equals(since)) {
+            return;
         }
-        mLoaded = true;
-        notifyAll();
+
+        List<Setting> changed = new ArrayList<Setting>();
+        List<Long> deleted = new ArrayList<Long>();
+        long oldestSequence = SettingsLoader.NO_SEQUENCE;
+        // The change log of another epoch does not have the changes after the sequence.
+        boolean sameEpoch = since.isAvailable() && since.epoch == sequence.epoch;
+        if (sameEpoch
+                && SettingsLoader.loadChanges(mContentResolver, since.value, changed, deleted)) {
+            oldestSequence = SettingsLoader.loadOldestSequence(mContentResolver);
+        }
+
+        if (oldestSequence == SettingsLoader.NO_SEQUENCE || oldestSequence > since.value) {
+            // The log does not have all changes, so every record is compared instead.
+            List<Setting> settings = SettingsLoader.loadAll(mContentResolver);
+            if (settings == null) {
+                return;
+            }
+
+            changed = settings;
+            Set<Long> removedIds = new HashSet<Long>(mIdMap.keySet());
+            for (Setting setting : settings) {
+                removedIds.remove(setting.getId());
+            }
+            deleted = new ArrayList<Long>(removedIds);
+        }
+
+        for (Setting setting : changed) {
+            update(setting);
+        }
+        for (Long id : deleted) {
+            remove(id);
+        }
+        mSequence = sequence;
     }
 
     public void addCacheListener(CacheListener l) {
@@ -132,227 +376,640 @@ import java.util.concurrent.CopyOnWriteArrayList;
     public void destroy() {
         mCacheListeners.clear();
         mContentResolver.unregisterContentObserver(mObserver);
+        mObserverThread.quit();
     }
 
     /**
      * Waits for a loading completion.
+     * Note that this method must not be called while holding the monitor of this cache
+     * because the loading needs the monitor to publish the loaded settings.
      */
     private void awaitLoading() {
         while (!mLoaded) {
             try {
-                wait();
+                mLoadingLatch.await();
             } catch (InterruptedException e) {}
         }
     }
 
-    public synchronized Map<String, ?> getAllAsMap() {
-        Map<String, Object> map = new HashMap<String, Object>();
-        Set<Entry<Uri, Setting>> entries = mMap.entrySet();
-        for (Entry<Uri, Setting> entry : entries) {
-            Setting cache = entry.getValue();
-            String key = cache.getKey();
-            Object value = cache.getValue();
-            map.put(key, value);
+    /**
+     * Returns all settings as an unmodifiable map.
+     * The same map is returned until this cache is changed.
+     *
+     * @return all settings including the settings that are currently changing
+     *         on the database.
+     */
+    public Map<String, ?> getAllAsMap() {
+        awaitLoading();
+        // The generation must be read before building the map so that a mutation
+        // during the build leaves the new snapshot outdated.
+        long generation = mGeneration.get();
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null && snapshot.generation == generation) {
+            return snapshot.map;
         }
-        return map;
-    }
 
-    public synchronized boolean contains(String key) {
-        if (mTempMap.containsKey(key)) {
-            return true;
+        Map<String, Object> map = new HashMap<String, Object>(mKeyMap.size());
+        if (!isClearPending()) {
+            for (Setting cache : mKeyMap.values()) {
+                map.put(cache.getKey(), cache.getValue());
+            }
         }
-
-        awaitLoading();
-        Set<Entry<Uri, Setting>> entries = mMap.entrySet();
-        for (Entry<Uri, Setting> entry : entries) {
-            Setting cache = entry.getValue();
-            String cacheKey = cache.getKey();
-            if (cacheKey.equals(key)) {
-                return true;
+        for (Map.Entry<String, Setting> pending : mTempMap.entrySet()) {
+            if (pending.getValue() instanceof Tombstone) {
+                map.remove(pending.getKey());
+            } else {
+                map.put(pending.getKey(), pending.getValue().getValue());
             }
         }
 
-        return false;
+        Map<String, ?> unmodifiableMap = Collections.unmodifiableMap(map);
+        mSnapshot = new Snapshot(generation, unmodifiableMap);
+        return unmodifiableMap;
     }
 
-    public synchronized void put(String key, Object value) {
-        mTempMap.put(key, value);
+    /**
+     * Makes the current snapshot outdated.
+     * This method should be called after the indexes or pending settings have been changed.
+     */
+    private void invalidateSnapshot() {
+        mGeneration.incrementAndGet();
+    }
+
+    public boolean contains(String key) {
+        Setting pending = mTempMap.get(key);
+        if (pending != null) {
+            return !(pending instanceof Tombstone);
+        }
+
+        if (isClearPending()) {
+            return false;
+        }
+
+        if (!mLoaded && mLoadOnDemand) {
+            return (loadOnDemand(key) != null);
+        }
 
         awaitLoading();
-        Set<Entry<Uri, Setting>> entries = mMap.entrySet();
-        Uri uri = null;
-        for (Entry<Uri, Setting> entry : entries) {
-            Setting cache = entry.getValue();
-            String cacheKey = cache.getKey();
-            if (cacheKey.equals(key)) {
-                uri = entry.getKey();
-                break;
+        return mKeyMap.containsKey(key);
+    }
+
+    /**
+     * Holds the setting as pending until the commit that writes it has completed.
+     *
+     * @param setting The setting to write.
+     * @see #onWriteCompleted(Setting, long, Setting)
+     */
+    public void put(Setting setting) {
+        String key = setting.getKey();
+        mTempMap.put(key, setting);
+        invalidateSnapshot();
+    }
+
+    /**
+     * Hides the setting for the key until the commit that deletes it has completed.
+     * This method does not wait for the initial loading.
+     *
+     * @param key The key of the setting.
+     * @return the tombstone that hides the key.
+     * @see #onRemoveCompleted(Setting, boolean, Setting)
+     */
+    public Setting remove(String key) {
+        Setting tombstone = new Tombstone(key);
+        mTempMap.put(key, tombstone);
+        invalidateSnapshot();
+        return tombstone;
+    }
+
+    /**
+     * Returns the setting for the key as it was last read from the database or written by
+     * a completed commit. Pending settings are ignored.
+     *
+     * @param key The key of the setting.
+     * @return the stored setting, or null if the setting is not in the indexes.
+     */
+    public Setting getStored(String key) {
+        return mKeyMap.get(key);
+    }
+
+    /**
+     * Called when the commit that writes the setting has completed.
+     * The pending setting is released, and the written setting is published to the indexes
+     * unless a change notification has updated the key since the write started.
+     * The provider neither logs nor notifies a write that does not change the stored
+     * setting, so the pending setting must not wait for a notification.
+     *
+     * @param setting The setting passed to {@link #put(Setting)}.
+     * @param id The row ID of the written setting, or {@link Setting#NO_ID} if the write
+     *        failed.
+     * @param stored The setting returned by {@link #getStored(String)} before the write.
+     */
+    public void onWriteCompleted(Setting setting, long id, Setting stored) {
+        String key = setting.getKey();
+        Setting written = null;
+        boolean changed = false;
+        synchronized (this) {
+            if (id != Setting.NO_ID && mKeyMap.get(key) == stored) {
+                written = setting.withId(id);
+                changed = (stored == null || stored.getId() != id
+                        || !stored.valueEquals(written));
+                putIntoIndex(written);
+                if (!mLoaded) {
+                    mCommittedSettings.put(key, written);
+                }
             }
+            // The index is updated first so that readers always find either value.
+            mTempMap.remove(key, setting);
         }
+        invalidateSnapshot();
 
-        if (uri != null) {
-            mMap.remove(uri);
+        if (changed) {
+            dispatchInsertedOrUpdated(written);
         }
     }
 
-    public synchronized void remove(String key) {
-        mTempMap.remove(key);
-
-        awaitLoading();
-        Set<Entry<Uri, Setting>> entries = mMap.entrySet();
-        Uri uri = null;
-        for (Entry<Uri, Setting> entry : entries) {
-            Setting cache = entry.getValue();
-            String cacheKey = cache.getKey();
-            if (cacheKey.equals(key)) {
-                uri = entry.getKey();
-                break;
+    /**
+     * Called when the commit that deletes the setting has completed.
+     * The tombstone is released, and the setting is removed from the indexes unless
+     * a change notification has updated the key since the deletion started.
+     * The listeners are notified of the removal as they are for other processes.
+     *
+     * @param tombstone The tombstone returned by {@link #remove(String)}.
+     * @param deleted true if the deletion has been committed.
+     * @param stored The setting returned by {@link #getStored(String)} before the deletion.
+     */
+    public void onRemoveCompleted(Setting tombstone, boolean deleted, Setting stored) {
+        String key = tombstone.getKey();
+        Setting removed = null;
+        synchronized (this) {
+            if (deleted && mKeyMap.get(key) == stored) {
+                removed = removeFromIndex(key);
+                if (!mLoaded) {
+                    // The loaded record is dropped, and its removal is notified unless
+                    // the removal has been notified here.
+                    mCommittedSettings.put(key, (removed != null) ? removed : tombstone);
+                }
             }
+            mTempMap.remove(key, tombstone);
         }
+        invalidateSnapshot();
 
-        if (uri != null) {
-            mMap.remove(uri);
+        if (removed != null) {
+            dispatchRemoved(removed);
         }
     }
 
-    public synchronized Setting get(String key) {
-        if (mTempMap.containsKey(key)) {
-            Object value = mTempMap.get(key);
-            return new Setting(key, value);
+    public Setting get(String key) {
+        Setting pending = mTempMap.get(key);
+        if (pending != null) {
+            return (pending instanceof Tombstone) ? null : pending;
+        }
+
+        if (isClearPending()) {
+            return null;
+        }
+
+        if (!mLoaded && mLoadOnDemand) {
+            return loadOnDemand(key);
         }
 
         awaitLoading();
-        Set<Entry<Uri, Setting>> entries = mMap.entrySet();
-        Uri uri = null;
-        for (Entry<Uri, Setting> entry : entries) {
-            Setting cache = entry.getValue();
-            String cacheKey = cache.getKey();
-            if (cacheKey.equals(key)) {
-                uri = entry.getKey();
-                break;
-            }
+        return mKeyMap.get(key);
+    }
+
+    /**
+     * Returns the setting for the key while the initial loading is still running.
+     * If the setting has not been loaded yet, only the record for the key is read from
+     * the database and put into the cache. The initial loading keeps running
+     * in the background and will overwrite the setting with the same record.
+     *
+     * @param key The key of the setting.
+     * @return the setting for the key, or null if the setting does not exist.
+     */
+    private Setting loadOnDemand(String key) {
+        Setting cached = mKeyMap.get(key);
+        if (cached != null) {
+            return cached;
         }
 
-        if (uri != null) {
-            return mMap.get(uri);
-        } else {
+        long clearGeneration = mClearGeneration;
+        Setting setting = SettingsLoader.load(mContentResolver, key);
+        if (setting == null) {
             return null;
         }
+
+        synchronized (this) {
+            // Change notifications are applied after the initial loading, so the loaded
+            // record may be kept only while the initial loading is running. The record
+            // might have been read before a commit for the key or a clear completed.
+            if (!mLoaded && !mKeyMap.containsKey(key) && !mCommittedSettings.containsKey(key)
+                    && clearGeneration == mClearGeneration && !isClearPending()) {
+                putIntoIndex(setting);
+            }
+        }
+        invalidateSnapshot();
+        return setting;
     }
 
-    public synchronized void clear() {
-        mMap.clear();
+    /**
+     * Hides all settings until the commit that deletes them has completed.
+     * Settings put after this call are not hidden. This method does not wait for
+     * the initial loading.
+     *
+     * @return the ticket of the clear.
+     * @see #onClearCompleted(long, boolean)
+     */
+    public synchronized long clear() {
+        // The clear is made pending first, so that readers never find the indexes
+        // without the pending settings.
+        long ticket = mRequestedClears + 1;
+        mRequestedClears = ticket;
         mTempMap.clear();
+        invalidateSnapshot();
+        return ticket;
     }
 
-    private synchronized void put(Uri uri, Setting setting) {
-        String key = setting.getKey();
-        mTempMap.remove(key);
+    /**
+     * Called when the commit that deletes all settings has completed.
+     * The settings are removed from the indexes, and the listeners are notified of
+     * the removals as they are for other processes.
+     *
+     * @param ticket The ticket returned by {@link #clear()}. The clears requested
+     *        before the ticket are completed as well.
+     * @param cleared true if the deletion has been committed.
+     */
+    public void onClearCompleted(long ticket, boolean cleared) {
+        List<Setting> removedSettings = null;
+        synchronized (this) {
+            if (cleared) {
+                removedSettings = new ArrayList<Setting>(mKeyMap.values());
+                mKeyMap.clear();
+                mIdMap.clear();
+                mClearGeneration++;
+            }
+
+            if (ticket > mCompletedClears) {
+                mCompletedClears = ticket;
+            }
+        }
+        invalidateSnapshot();
+
+        if (removedSettings != null) {
+            for (Setting removed : removedSettings) {
+                dispatchRemoved(removed);
+            }
+            // A change made by another process after the deletion might have been
+            // notified before the indexes were cleared.
+            mObserver.requestCatchUp();
+        }
+    }
 
+    private boolean isClearPending() {
+        return mCompletedClears < mRequestedClears;
+    }
+
+    /**
+     * Applies the setting re-read from the database after a change notification.
+     *
+     * @param setting The inserted or updated setting.
+     */
+    private void update(Setting setting) {
         awaitLoading();
-        if (uri != null) {
-            mMap.put(uri, setting);
+        boolean changed;
+        synchronized (this) {
+            Setting cached = mKeyMap.get(setting.getKey());
+            // The writer has already published its own change when its commit completed.
+            changed = (cached == null || cached.getId() != setting.getId()
+                    || !cached.valueEquals(setting));
+            putIntoIndex(setting);
         }
+        invalidateSnapshot();
 
-        dispatchInsertedOrUpdated(setting);
+        if (changed) {
+            dispatchInsertedOrUpdated(setting);
+        }
     }
 
-    private synchronized void remove(Uri uri) {
+    /**
+     * Removes the setting whose record was deleted from the database.
+     *
+     * @param id The row ID of the deleted record.
+     */
+    private void remove(long id) {
         awaitLoading();
-        if (uri != null) {
-            Setting removed = mMap.remove(uri);
-            String removedKey = removed.getKey();
-            mTempMap.remove(removedKey);
+        Setting removed = null;
+        synchronized (this) {
+            removed = removeFromIndex(id);
+        }
+        invalidateSnapshot();
+
+        if (removed != null) {
+            dispatchRemoved(removed);
+        }
+    }
+
+    /**
+     * Puts the setting into the key index and the ID index.
+     * A stale entry that has the same key or the same ID is replaced.
+     *
+     * @param setting The setting loaded from the database.
+     */
+    private void putIntoIndex(Setting setting) {
+        long id = setting.getId();
+        String key = setting.getKey();
+        Setting old = mKeyMap.put(key, setting);
+        if (old != null && old.getId() != id) {
+            mIdMap.remove(old.getId());
+        }
+
+        if (id != Setting.NO_ID) {
+            String oldKey = mIdMap.put(id, key);
+            if (oldKey != null && !oldKey.equals(key)) {
+                mKeyMap.remove(oldKey);
+            }
+        }
+    }
+
+    /**
+     * Removes the setting for the key from the key index and the ID index.
+     *
+     * @param key The key of the setting.
+     * @return the removed setting, or null if the setting was not cached.
+     */
+    private Setting removeFromIndex(String key) {
+        Setting removed = mKeyMap.remove(key);
+        if (removed != null) {
+            mIdMap.remove(removed.getId());
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the setting for the row ID from the key index and the ID index.
+     *
+     * @param id The row ID of the setting.
+     * @return the removed setting, or null if the setting was not cached.
+     */
+    private Setting removeFromIndex(long id) {
+        String key = mIdMap.remove(id);
+        if (key == null) {
+            return null;
+        }
+
+        Setting removed = mKeyMap.get(key);
+        if (removed != null && removed.getId() == id) {
+            mKeyMap.remove(key);
+            return removed;
         }
+        return null;
+    }
 
-        Setting setting = mMap.get(uri);
-        dispatchRemoved(setting);
+    /**
+     * Dispatches the removal to the listeners on the main thread.
+     */
+    private void dispatchRemoved(final Setting setting) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (CacheListener l : mCacheListeners) {
+                    l.onRemoved(setting);
+                }
+            }
+        });
     }
 
+    /**
+     * Dispatches the insertion or update to the listeners on the main thread.
+     */
+    private void dispatchInsertedOrUpdated(final Setting setting) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (CacheListener l : mCacheListeners) {
+                    l.onInsertedOrUpdated(setting);
+                }
+            }
+        });
+    }
+
+    /**
+     * The placeholder in {@link #mTempMap} that hides a removed key from readers.
+     */
+    private static final class Tombstone extends Setting {
 
-    private void dispatchRemoved(Setting setting) {
-        for (CacheListener l : mCacheListeners) {
-            l.onRemoved(setting);
+        public Tombstone(String key) {
+            super(key, false);
         }
     }
 
-    private void dispatchInsertedOrUpdated(Setting setting) {
-        for (CacheListener l : mCacheListeners) {
-            l.onInsertedOrUpdated(setting);
+    /**
+     * The immutable pair of a map for all settings and the generation it was built for.
+     */
+    private static final class Snapshot {
+
+        public final long generation;
+        public final Map<String, ?> map;
+
+        public Snapshot(long generation, Map<String, ?> map) {
+            this.generation = generation;
+            this.map = map;
         }
     }
 
     /**
      * The observer for the settings database to update the cache status.
+     * Notified rows are not re-read one by one. The IDs of the rows notified within
+     * {@link #COALESCING_DELAY_MILLIS} are collected and re-read with a single query
+     * on the observer thread. Notifications that carry the new value are applied directly.
+     * @see SettingsContract#NOTIFY_VALUE
      */
     private static class SettingsObserver extends ContentObserver {
 
+        /**
+         * The time to wait for further notifications before re-reading changed rows.
+         */
+        private static final long COALESCING_DELAY_MILLIS = 50;
+
+        /**
+         * The path of the settings table, which is notified for a batch of changes.
+         */
+        private static final String CONTENT_PATH = SettingsContract.CONTENT_URI.getPath();
+
         private SettingsCache mCache;
         private ContentResolver mContentResolver;
+        private Handler mHandler;
+
+        /**
+         * The IDs of rows that have changed since the last flush.
+         * This set is accessed only on the observer thread.
+         */
+        private Set<Long> mDirtyIds = new HashSet<Long>();
+
+        private final Runnable mFlush = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        private final Runnable mCatchUp = new Runnable() {
+            @Override
+            public void run() {
+                mCache.catchUp();
+            }
+        };
 
-        public SettingsObserver(Context context, SettingsCache cache) {
-            // Callbacks will be called on the main thread.
-            super(new Handler(context.getMainLooper()));
+        public SettingsObserver(Context context, SettingsCache cache, Handler handler) {
+            // Callbacks will be called on the thread of the handler.
+            super(handler);
+            mHandler = handler;
             mContentResolver = context.getContentResolver();
             mCache = cache;
         }
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
-            synchronized (mCache) {
-                mCache.awaitLoading();
+            if (uri == null) {
+                return;
             }
 
-            if (uri == null) {
+            if (CONTENT_PATH.equals(uri.getPath())) {
+                // The table itself is notified when many rows have changed in a transaction
+                // or notifications might have been lost.
+                long sequence = parseSequence(uri);
+                long epoch = parseEpoch(uri);
+                if (sequence != SettingsLoader.NO_SEQUENCE
+                        && mCache.mSequence.includes(epoch, sequence)) {
+                    // The cache has already caught up with the transaction.
+                    return;
+                }
+
+                requestCatchUp();
                 return;
             }
 
-            String lastPath = uri.getLastPathSegment();
+            long id = parseId(uri);
+            if (id == Setting.NO_ID) {
+                return;
+            }
+
+            if (uri.getBooleanQueryParameter(SettingsContract.DELETED, false)) {
+                mDirtyIds.remove(id);
+                onSettingRemoved(id);
+                return;
+            }
+
+            Setting setting = Setting.fromNotification(id,
+                    uri.getQueryParameter(SettingsContract.KEY),
+                    uri.getQueryParameter(SettingsContract.TYPE),
+                    uri.getQueryParameter(SettingsContract.VALUE));
+            if (setting != null) {
+                // The notification carries the value, so the row need not be re-read.
+                mDirtyIds.remove(id);
+                onSettingInsertedOrUpdated(setting);
+                return;
+            }
+
+            if (mDirtyIds.isEmpty()) {
+                mHandler.postDelayed(mFlush, COALESCING_DELAY_MILLIS);
+            }
+            mDirtyIds.add(id);
+        }
+
+        /**
+         * Catches up with the changes on the observer thread.
+         * The requests that have not been handled yet are merged.
+         */
+        public void requestCatchUp() {
+            mHandler.removeCallbacks(mCatchUp);
+            mHandler.post(mCatchUp);
+        }
+
+        /**
+         * Returns the ID of the row in the notified {@link Uri}.
+         * A key {@link Uri} carries the ID as the {@link SettingsContract#_ID} parameter.
+         */
+        private static long parseId(Uri uri) {
+            String id = uri.getQueryParameter(SettingsContract._ID);
+            if (id == null) {
+                id = uri.getLastPathSegment();
+            }
+
             try {
-                Long.parseLong(lastPath);
+                return Long.parseLong(id);
             } catch (NumberFormatException e) {
-                return;
+                return Setting.NO_ID;
+            }
+        }
+
+        private static long parseEpoch(Uri uri) {
+            String epoch = uri.getQueryParameter(SettingsContract.EPOCH);
+            if (epoch == null) {
+                return SettingsLoader.NO_EPOCH;
             }
 
-            Cursor cursor = null;
             try {
-                cursor = SettingsLoader.loadCursor(mContentResolver, uri);
-                if (cursor == null) {
-                    return;
-                }
+                return Long.parseLong(epoch);
+            } catch (NumberFormatException e) {
+                return SettingsLoader.NO_EPOCH;
+            }
+        }
 
-                int count = cursor.getCount();
-                if (count == 0) {
-                    onSettingRemoved(uri);
-                    return;
-                }
+        private static long parseSequence(Uri uri) {
+            String sequence = uri.getQueryParameter(SettingsContract.SEQUENCE);
+            if (sequence == null) {
+                return SettingsLoader.NO_SEQUENCE;
+            }
 
-                if (cursor.moveToNext()) {
-                    Setting setting = Setting.cursorRowToSetting(cursor);
-                    onSettingInsertedOrUpdated(uri, setting);
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+            try {
+                return Long.parseLong(sequence);
+            } catch (NumberFormatException e) {
+                return SettingsLoader.NO_SEQUENCE;
+            }
+        }
+
+        /**
+         * Re-reads the changed rows and applies them to the cache.
+         * The rows that are no longer found were removed from the database.
+         */
+        private void flush() {
+            mCache.awaitLoading();
+            if (mDirtyIds.isEmpty()) {
+                return;
+            }
+
+            List<Long> ids = new ArrayList<Long>(mDirtyIds);
+            mDirtyIds.clear();
+            List<Setting> settings = SettingsLoader.loadAll(mContentResolver, ids);
+            if (settings == null) {
+                return;
+            }
+
+            Set<Long> removedIds = new HashSet<Long>(ids);
+            for (Setting setting : settings) {
+                removedIds.remove(setting.getId());
+                onSettingInsertedOrUpdated(setting);
+            }
+
+            for (Long removedId : removedIds) {
+                onSettingRemoved(removedId);
             }
         }
 
         /**
          * Called when a setting was removed.
-         * @param uri The {@link Uri} of the removed record.
+         * @param id The ID of the removed record.
          */
-        private void onSettingRemoved(Uri uri) {
-            mCache.remove(uri);
+        private void onSettingRemoved(long id) {
+            mCache.remove(id);
         }
 
         /**
          * Called when a setting was newly inserted or updated.
-         * @param uri The {@link Uri} of the inserted or updated record.
          * @param setting The inserted or updated setting.
          */
-        private void onSettingInsertedOrUpdated(Uri uri, Setting setting) {
-            mCache.put(uri, setting);
+        private void onSettingInsertedOrUpdated(Setting setting) {
+            mCache.update(setting);
         }
     }
 
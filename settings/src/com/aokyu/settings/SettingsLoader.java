@@ -12,9 +12,11 @@ import com.aokyu.settings.provider.SettingsContract;
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /* package */ class SettingsLoader {
 
@@ -25,15 +27,103 @@ import java.util.concurrent.ConcurrentHashMap;
         SettingsContract.VALUE
     };
 
-    private static final String SELECTION = SettingsContract.KEY + "=?";
+    /**
+     * The maximum number of IDs in a selection.
+     * SQLite limits the number of host parameters in a statement to 999.
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
 
     /**
      * This clause is used to speed up queries.
      */
     private static final String SORT_ORDER = SettingsContract._ID + " DESC LIMIT 1";
 
+    /**
+     * Indicates that the change sequence of the settings provider is not available.
+     */
+    public static final long NO_SEQUENCE = -1;
+
+    /**
+     * Indicates that the epoch of the settings provider is not available.
+     */
+    public static final long NO_EPOCH = 0;
+
     private SettingsLoader() {}
 
+    /**
+     * Loads the sequence of the last change committed to the settings provider.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @return the sequence of the last committed change with its epoch. The sequence is
+     *         {@link #NO_SEQUENCE} if the provider does not support sequences.
+     */
+    public static Sequence loadSequence(ContentResolver resolver) {
+        Bundle result = resolver.call(SettingsContract.CONTENT_URI,
+                SettingsContract.METHOD_GET_SEQUENCE, null, null);
+        if (result == null) {
+            return Sequence.NONE;
+        }
+        return new Sequence(result.getLong(SettingsContract.KEY_EPOCH, NO_EPOCH),
+                result.getLong(SettingsContract.KEY_SEQUENCE, NO_SEQUENCE));
+    }
+
+    /**
+     * Loads the oldest sequence that the change log of the settings provider can be read from.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @return the oldest sequence, or {@link #NO_SEQUENCE} if the provider does not support
+     *         sequences.
+     * @see SettingsContract#KEY_OLDEST_SEQUENCE
+     */
+    public static long loadOldestSequence(ContentResolver resolver) {
+        Bundle result = resolver.call(SettingsContract.CONTENT_URI,
+                SettingsContract.METHOD_GET_SEQUENCE, null, null);
+        if (result == null) {
+            return NO_SEQUENCE;
+        }
+        return result.getLong(SettingsContract.KEY_OLDEST_SEQUENCE, NO_SEQUENCE);
+    }
+
+    /**
+     * Loads the changes committed after the sequence.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @param since The sequence after which changes are loaded.
+     * @param changed The list to add inserted or updated settings to.
+     * @param deleted The list to add the IDs of deleted settings to.
+     * @return true if the changes were loaded.
+     * @see SettingsContract#CHANGES_URI
+     */
+    public static boolean loadChanges(ContentResolver resolver, long since,
+            List<Setting> changed, List<Long> deleted) {
+        Uri uri = SettingsContract.CHANGES_URI.buildUpon()
+                .appendQueryParameter(SettingsContract.SINCE, String.valueOf(since))
+                .build();
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, null, null, null, null);
+            if (cursor == null) {
+                return false;
+            }
+
+            int idIndex = cursor.getColumnIndex(SettingsContract._ID);
+            int deletedIndex = cursor.getColumnIndex(SettingsContract.DELETED);
+            Setting.CursorDecoder decoder = new Setting.CursorDecoder(cursor);
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(deletedIndex) != 0) {
+                    deleted.add(cursor.getLong(idIndex));
+                } else {
+                    changed.add(decoder.decode());
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return true;
+    }
+
     /**
      * Loads the {@link Cursor} of the {@link Uri}.
      *
@@ -59,8 +149,8 @@ import java.util.concurrent.ConcurrentHashMap;
         Setting setting = null;
         Cursor cursor = null;
         try {
-            cursor = resolver.query(SettingsContract.CONTENT_URI, PROJECTION,
-                    SELECTION, new String[] { key }, SORT_ORDER);
+            cursor = resolver.query(SettingsContract.getKeyUri(key), PROJECTION,
+                    null, null, null);
 
             if (cursor == null) {
                 return null;
@@ -79,8 +169,7 @@ import java.util.concurrent.ConcurrentHashMap;
     }
 
     public static Cursor loadCursor(ContentResolver resolver, String key) {
-        return resolver.query(SettingsContract.CONTENT_URI, PROJECTION,
-                SELECTION, new String[] { key }, SORT_ORDER);
+        return resolver.query(SettingsContract.getKeyUri(key), PROJECTION, null, null, null);
     }
 
     /**
@@ -89,8 +178,8 @@ import java.util.concurrent.ConcurrentHashMap;
      * @param resolver The {@link ContentResolver}.
      * @return the {@link Setting}s on the database.
      */
-    public static Map<Uri, Setting> loadAll(ContentResolver resolver) {
-        Map<Uri, Setting> map = new ConcurrentHashMap<Uri, Setting>();
+    public static List<Setting> loadAll(ContentResolver resolver) {
+        List<Setting> settings = null;
         Cursor cursor = null;
         try {
             cursor = resolver.query(SettingsContract.CONTENT_URI, PROJECTION, null, null, null);
@@ -98,18 +187,132 @@ import java.util.concurrent.ConcurrentHashMap;
                 return null;
             }
 
+            settings = new ArrayList<Setting>(cursor.getCount());
+            Setting.CursorDecoder decoder = new Setting.CursorDecoder(cursor);
+            while (cursor.moveToNext()) {
+                settings.add(decoder.decode());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return settings;
+    }
+
+    /**
+     * Loads the {@link Setting}s for the IDs.
+     * The IDs are queried in chunks, so the number of queries is proportional to
+     * the number of IDs divided by {@link #MAX_IDS_PER_QUERY}.
+     *
+     * @param resolver The {@link ContentResolver}.
+     * @param ids The row IDs of the settings.
+     * @return the {@link Setting}s that exist on the database, or null if the settings
+     *         could not be loaded.
+     */
+    public static List<Setting> loadAll(ContentResolver resolver, Collection<Long> ids) {
+        List<Setting> settings = new ArrayList<Setting>(ids.size());
+        List<Long> chunk = new ArrayList<Long>(Math.min(ids.size(), MAX_IDS_PER_QUERY));
+        for (Long id : ids) {
+            chunk.add(id);
+            if (chunk.size() == MAX_IDS_PER_QUERY) {
+                if (!loadChunk(resolver, chunk, settings)) {
+                    return null;
+                }
+                chunk.clear();
+            }
+        }
+
+        if (!chunk.isEmpty() && !loadChunk(resolver, chunk, settings)) {
+            return null;
+        }
+        return settings;
+    }
+
+    private static boolean loadChunk(ContentResolver resolver, List<Long> ids,
+            List<Setting> settings) {
+        int size = ids.size();
+        StringBuilder selection = new StringBuilder(SettingsContract._ID).append(" IN (");
+        String[] selectionArgs = new String[size];
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append('?');
+            selectionArgs[i] = String.valueOf(ids.get(i));
+        }
+        selection.append(')');
+
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(SettingsContract.CONTENT_URI, PROJECTION,
+                    selection.toString(), selectionArgs, null);
+            if (cursor == null) {
+                return false;
+            }
+
+            Setting.CursorDecoder decoder = new Setting.CursorDecoder(cursor);
             while (cursor.moveToNext()) {
-                Setting setting = Setting.cursorRowToSetting(cursor);
-                long id = setting.getId();
-                Uri uri = Uri.withAppendedPath(SettingsContract.CONTENT_URI, String.valueOf(id));
-                map.put(uri, setting);
+                settings.add(decoder.decode());
             }
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
+        return true;
+    }
+
+    /**
+     * The change sequence of the settings provider with the epoch of the database.
+     * Sequences of different epochs cannot be compared, since the sequence starts over
+     * when the database is recreated.
+     * @see SettingsContract#KEY_EPOCH
+     */
+    public static final class Sequence {
+
+        /**
+         * The sequence that is not available.
+         */
+        public static final Sequence NONE = new Sequence(NO_EPOCH, NO_SEQUENCE);
+
+        public final long epoch;
+        public final long value;
 
-        return map;
+        public Sequence(long epoch, long value) {
+            this.epoch = epoch;
+            this.value = value;
+        }
+
+        public boolean isAvailable() {
+            return value != NO_SEQUENCE;
+        }
+
+        /**
+         * Returns true if the changes up to the sequence of the epoch have been included
+         * in this sequence.
+         *
+         * @param epoch The epoch of the sequence.
+         * @param sequence The sequence to compare.
+         * @return true if the sequence is of the same epoch and is not after this sequence.
+         */
+        public boolean includes(long epoch, long sequence) {
+            return isAvailable() && this.epoch == epoch && sequence <= value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Sequence)) {
+                return false;
+            }
+            Sequence other = (Sequence) o;
+            return epoch == other.epoch && value == other.value;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (epoch ^ (epoch >>> 32)) * 31 + (int) (value ^ (value >>> 32));
+        }
     }
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2015 Yu AOKI
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package com.aokyu.settings;
+
+import android.os.Process;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The binary snapshot of the settings cache to warm up the cache on a cold start.
+ * The snapshot is labeled with the change sequence of the settings provider and its epoch,
+ * so the snapshot can be used as is if no change has been committed since it was written,
+ * or can be brought up to date with the change log of the provider.
+ *
+ * The file consists of a header, the settings and a CRC32 checksum of the preceding bytes.
+ * <pre>
+ * header  : magic(int) version(int) epoch(long) sequence(long) count(int)
+ * setting : id(long) key(string) type(int) bits(long) value(bytes)
+ * string  : length(int) UTF-8 bytes, the length is -1 for null
+ * </pre>
+ * @see com.aokyu.settings.provider.SettingsContract#METHOD_GET_SEQUENCE
+ */
+/* package */ class SettingsSnapshot {
+
+    private static final String FILE_NAME = "settings.snapshot";
+
+    private static final int MAGIC = 0x53455454;
+
+    private static final int FORMAT_VERSION = 3;
+
+    private static final int NULL_LENGTH = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The size of the buffer used to calculate the checksum of a mapped file.
+     */
+    private static final int CHECKSUM_BUFFER_SIZE = 8192;
+
+    private final File mFile;
+
+    /**
+     * Creates a snapshot in the directory.
+     *
+     * @param dir The directory for the snapshot file.
+     */
+    public SettingsSnapshot(File dir) {
+        mFile = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * Reads the settings from the snapshot file through a memory mapping.
+     *
+     * @return the contents of the snapshot, or null if the snapshot does not exist
+     *         or is corrupted.
+     */
+    public Contents read() {
+        if (!mFile.isFile()) {
+            return null;
+        }
+
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(mFile);
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        } catch (IOException e) {
+            return null;
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    private Contents read(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+
+        long epoch = buffer.getLong();
+        long sequence = buffer.getLong();
+        if (!hasValidChecksum(buffer)) {
+            return null;
+        }
+
+        int count = buffer.getInt();
+        if (count < 0) {
+            return null;
+        }
+
+        List<Setting> settings = new ArrayList<Setting>(count);
+        for (int i = 0; i < count; i++) {
+            long id = buffer.getLong();
+            String key = readString(buffer);
+            int type = buffer.getInt();
+            long bits = buffer.getLong();
+            byte[] bytes = readBytes(buffer);
+            if (key == null) {
+                return null;
+            }
+
+            Object value = null;
+            if (bytes != null) {
+                if (type == Setting.TYPE_STRING) {
+                    value = new String(bytes, UTF_8);
+                } else {
+                    value = Setting.decodeObject(bytes);
+                }
+            }
+            settings.add(Setting.restore(id, key, type, bits, value));
+        }
+        return new Contents(new SettingsLoader.Sequence(epoch, sequence), settings);
+    }
+
+    /**
+     * Verifies the checksum at the end of the buffer.
+     * The position of the buffer is not changed.
+     */
+    private boolean hasValidChecksum(ByteBuffer buffer) {
+        int checksumPosition = buffer.limit() - 8;
+        if (checksumPosition < buffer.position()) {
+            return false;
+        }
+
+        ByteBuffer content = buffer.duplicate();
+        content.position(0);
+        content.limit(checksumPosition);
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[CHECKSUM_BUFFER_SIZE];
+        while (content.hasRemaining()) {
+            int length = Math.min(chunk.length, content.remaining());
+            content.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue() == buffer.getLong(checksumPosition);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        } else if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("invalid length");
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = readBytes(buffer);
+        if (bytes == null) {
+            return null;
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Writes the settings into the snapshot file.
+     * The file is replaced atomically, so other processes never read a partial snapshot.
+     *
+     * @param sequence The change sequence of the settings provider read before the settings
+     *        were loaded.
+     * @param settings The settings loaded from the database.
+     * @return true if the snapshot was written.
+     */
+    public boolean write(SettingsLoader.Sequence sequence, Collection<Setting> settings) {
+        File temp = new File(mFile.getPath() + "." + Process.myPid() + ".tmp");
+        DataOutputStream output = null;
+        boolean written = false;
+        try {
+            CRC32 crc = new CRC32();
+            FileOutputStream stream = new FileOutputStream(temp);
+            CheckedOutputStream checked =
+                    new CheckedOutputStream(new BufferedOutputStream(stream), crc);
+            output = new DataOutputStream(checked);
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeLong(sequence.epoch);
+            output.writeLong(sequence.value);
+            output.writeInt(settings.size());
+            for (Setting setting : settings) {
+                output.writeLong(setting.getId());
+                writeString(output, setting.getKey());
+                output.writeInt(setting.getType());
+                output.writeLong(setting.getBits());
+                writeValue(output, setting);
+            }
+            output.flush();
+            // The checksum itself is not a part of the checksum.
+            output.writeLong(crc.getValue());
+            output.close();
+            output = null;
+            written = temp.renameTo(mFile);
+        } catch (IOException e) {
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {}
+            }
+            if (!written) {
+                temp.delete();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Deletes the snapshot file.
+     */
+    public void delete() {
+        mFile.delete();
+    }
+
+    private static void writeValue(DataOutputStream output, Setting setting)
+            throws IOException {
+        switch (setting.getType()) {
+            case Setting.TYPE_STRING:
+                writeString(output, (String) setting.getValue());
+                break;
+            case Setting.TYPE_OBJECT:
+                writeBytes(output, Setting.encodeObject(setting.getValue()));
+                break;
+            default:
+                writeBytes(output, null);
+                break;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            output.writeInt(NULL_LENGTH);
+        } else {
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String str) throws IOException {
+        if (str == null) {
+            writeBytes(output, null);
+        } else {
+            writeBytes(output, str.getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * The settings read from a snapshot file.
+     */
+    public static final class Contents {
+
+        /**
+         * The change sequence of the settings provider the snapshot was written for.
+         */
+        public final SettingsLoader.Sequence sequence;
+
+        public final List<Setting> settings;
+
+        public Contents(SettingsLoader.Sequence sequence, List<Setting> settings) {
+            this.sequence = sequence;
+            this.settings = settings;
+        }
+    }
+}
@@ -34,10 +34,57 @@ public final class SettingsContract implements BaseColumns {
 
     /**
      * The content:// style URI for this table.
+     * A change of a row is notified with the {@link #getKeyUri(String) key URI} of the row,
+     * which has the {@link #_ID} query parameter. When a transaction has changed
+     * many rows, or notifications might have been lost, this URI itself is notified instead,
+     * optionally with the {@link #SEQUENCE} query parameter that holds the last committed
+     * sequence and the {@link #EPOCH} query parameter that holds the epoch of the sequence,
+     * and observers should catch up with {@link #CHANGES_URI}.
      */
     public static final Uri CONTENT_URI =
             Uri.withAppendedPath(AUTHORITY_URI, "settings");
 
+    /**
+     * The content:// style URI for settings addressed by their keys.
+     * The key is appended as the last path segment by {@link #getKeyUri(String)}.
+     */
+    public static final Uri KEY_URI = Uri.withAppendedPath(CONTENT_URI, "key");
+
+    /**
+     * Returns the content:// style URI for the setting of the key.
+     * A query for the URI returns the setting without a selection, and an observer of
+     * the URI is notified only of the changes of the setting and of batched changes.
+     *
+     * @param key The key of the setting.
+     * @return the URI for the setting.
+     */
+    public static Uri getKeyUri(String key) {
+        return KEY_URI.buildUpon().appendPath(key).build();
+    }
+
+    /**
+     * The content:// style URI for the change log of this table.
+     * A query returns the last change of each row committed after the sequence given by
+     * the {@link #SINCE} query parameter, ordered by {@link #SEQUENCE}. The result has
+     * {@link #_ID}, {@link #KEY}, {@link #TYPE}, {@link #VALUE}, {@link #SEQUENCE} and
+     * {@link #DELETED} columns, and only the ID, the sequence and the flag are set for
+     * a deleted row. Changes up to {@link #KEY_OLDEST_SEQUENCE} may have been compacted,
+     * so clients that have synchronized with an older sequence should reload all rows.
+     */
+    public static final Uri CHANGES_URI = Uri.withAppendedPath(AUTHORITY_URI, "changes");
+
+    /**
+     * The query parameter of {@link #CHANGES_URI} for the sequence after which changes
+     * are returned.
+     */
+    public static final String SINCE = "since";
+
+    /**
+     * The MIME type of the results from {@link #CHANGES_URI}.
+     */
+    public static final String CHANGES_CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+            + "/vnd.aokyu.settings.changes";
+
     /**
      * The MIME type of the results from {@link #CONTENT_URI}.
      */
@@ -47,6 +94,80 @@ public final class SettingsContract implements BaseColumns {
     public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE
             + "/vnd.aokyu.settings";
 
+    /**
+     * The method for {@link android.content.ContentResolver#call(Uri, String, String,
+     * android.os.Bundle)} to get the sequence of the last committed change.
+     * The sequence is incremented whenever a transaction changes the settings table.
+     * @see #KEY_SEQUENCE
+     */
+    public static final String METHOD_GET_SEQUENCE = "get_sequence";
+
+    /**
+     * The key of the result of {@link #METHOD_GET_SEQUENCE}.
+     * <P>Type: long</P>
+     */
+    public static final String KEY_SEQUENCE = "sequence";
+
+    /**
+     * The key of the result of {@link #METHOD_GET_SEQUENCE} for the epoch of the database.
+     * The epoch is a random number that changes whenever the database is recreated, and
+     * sequences of different epochs must not be compared. Clients that have synchronized
+     * in another epoch should reload all rows.
+     * <P>Type: long</P>
+     */
+    public static final String KEY_EPOCH = "epoch";
+
+    /**
+     * The key of the result of {@link #METHOD_GET_SEQUENCE} for the oldest sequence
+     * that clients can catch up from with {@link #CHANGES_URI}.
+     * <P>Type: long</P>
+     */
+    public static final String KEY_OLDEST_SEQUENCE = "oldest_sequence";
+
+    /**
+     * The method for {@link android.content.ContentResolver#call(Uri, String, String,
+     * android.os.Bundle)} to get the number of writes that were skipped because the
+     * setting already had the same type and value. The count starts from zero when
+     * the provider process is started.
+     * @see #KEY_SUPPRESSED_WRITE_COUNT
+     */
+    public static final String METHOD_GET_SUPPRESSED_WRITE_COUNT = "get_suppressed_write_count";
+
+    /**
+     * The key of the result of {@link #METHOD_GET_SUPPRESSED_WRITE_COUNT}.
+     * <P>Type: long</P>
+     */
+    public static final String KEY_SUPPRESSED_WRITE_COUNT = "suppressed_write_count";
+
+    /**
+     * The boolean query parameter for insert operations to update the existing row that has
+     * the same {@link #KEY} instead of failing on the unique constraint.
+     * The existing row keeps its ID, and the lookup and the write are done in the same
+     * transaction, so clients can write a setting without querying it first.
+     * If the existing row already has the same type and value, nothing is written and
+     * no change is notified, but the {@link Uri} of the existing row is still returned.
+     */
+    public static final String UPSERT = "upsert";
+
+    /**
+     * The boolean query parameter for insert, update and delete operations to request
+     * change notifications that carry the new value of each changed row.
+     * The notified {@link Uri} of a changed row has {@link #KEY}, {@link #TYPE} and
+     * {@link #VALUE} query parameters if the value is short enough and not binary,
+     * and the notified {@link Uri} of a deleted row has the {@link #DELETED} query parameter.
+     * Observers should query the row if the parameters are missing.
+     */
+    public static final String NOTIFY_VALUE = "notify_value";
+
+    /**
+     * The flag indicating that the row was deleted.
+     * This is a boolean query parameter of a notified {@link Uri} and
+     * a column of {@link #CHANGES_URI}.
+     * <P>Type: INTEGER (boolean)</P>
+     * @see #NOTIFY_VALUE
+     */
+    public static final String DELETED = "deleted";
+
     /**
      * @see BaseColumns#_ID
      */
@@ -59,14 +180,60 @@ public final class SettingsContract implements BaseColumns {
     public static final String KEY = "key";
 
     /**
-     * The type of the value. The type is a string representation of class names.
-     * <P>Type: TEXT</P>
+     * The type of the value. The type is one of the type codes such as {@link #TYPE_STRING}.
+     * <P>Type: INTEGER</P>
      */
     public static final String TYPE = "type";
 
+    /**
+     * The type code for boolean values, which are stored as 1 or 0.
+     */
+    public static final int TYPE_BOOLEAN = 1;
+
+    /**
+     * The type code for float values.
+     */
+    public static final int TYPE_FLOAT = 2;
+
+    /**
+     * The type code for integer values.
+     */
+    public static final int TYPE_INTEGER = 3;
+
+    /**
+     * The type code for long values.
+     */
+    public static final int TYPE_LONG = 4;
+
+    /**
+     * The type code for string values.
+     */
+    public static final int TYPE_STRING = 5;
+
+    /**
+     * The type code for other values, which are stored as encoded bytes.
+     */
+    public static final int TYPE_OBJECT = 6;
+
     /**
      * The value of the mapping with the specified key.
-     * <P>Type: TEXT</P>
+     * The value is stored in the storage class for {@link #TYPE}.
+     * <P>Type: INTEGER (boolean, int or long), REAL (float), TEXT (String) or BLOB (others)</P>
      */
     public static final String VALUE = "value";
+
+    /**
+     * The sequence of the transaction that changed the row.
+     * This is a column of {@link #CHANGES_URI} and a query parameter of a batched
+     * notification of {@link #CONTENT_URI}.
+     * <P>Type: INTEGER (long)</P>
+     */
+    public static final String SEQUENCE = "sequence";
+
+    /**
+     * The query parameter of a batched notification of {@link #CONTENT_URI} for the epoch
+     * of {@link #SEQUENCE}.
+     * @see #KEY_EPOCH
+     */
+    public static final String EPOCH = "epoch";
 }
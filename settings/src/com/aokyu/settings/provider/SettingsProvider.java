@@ -30,15 +30,30 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.database.sqlite.SQLiteTransactionListener;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The settings provider.
@@ -69,9 +84,42 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
      */
     protected static final int SLEEP_AFTER_YIELD_DELAY = 4000;
 
+    /**
+     * The time before starting a new transaction if the lock was actually yielded
+     * in write-ahead logging mode. Readers never wait for a writer in this mode,
+     * so a yield only lets another writer in.
+     */
+    protected static final int SLEEP_AFTER_YIELD_DELAY_WAL = 0;
+
+    /**
+     * The default number of pages in the write-ahead log that triggers a checkpoint.
+     */
+    protected static final int DEFAULT_WAL_AUTO_CHECKPOINT = 1000;
+
+    /**
+     * The maximum number of rows notified one by one for a transaction.
+     * @see #getMaxRowNotifications()
+     */
+    private static final int MAX_ROW_NOTIFICATIONS = 16;
+
+    /**
+     * The maximum length of a key and a value to carry in a change notification.
+     * @see SettingsContract#NOTIFY_VALUE
+     */
+    private static final int MAX_NOTIFIED_VALUE_LENGTH = 256;
+
+    /**
+     * The payload of a change that marks the deletion of a row.
+     * @see #getDeletionPayload(Uri)
+     */
+    private static final Object DELETION_PAYLOAD = new Object();
+
+    private static final String VALUE_FORMAT_MIGRATION_THREAD_NAME = "SettingsMigration";
+
+    private static final String STORE_LOADING_THREAD_NAME = "SettingsStoreLoader";
+
     private Context mContext;
     private DatabaseHelper mDatabaseHelper;
-    private ThreadLocal<DatabaseHelper> mSettingsHelper;
 
     /**
      * Holds the current transaction for a thread.
@@ -81,17 +129,52 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     /**
-     * The temporary {@link ContentValues} to for a database operation.
+     * The number of writes skipped because the setting was unchanged.
+     * @see SettingsContract#METHOD_GET_SUPPRESSED_WRITE_COUNT
+     */
+    private final AtomicLong mSuppressedWriteCount = new AtomicLong();
+
+    /**
+     * The precompiled statements for the current database.
+     * @see #getStatements(SQLiteDatabase)
+     */
+    private SettingsStatements mStatements;
+
+    /**
+     * The in-memory copy of the settings table, or null if reads are served by the database.
+     * @see #isMemoryStoreEnabled()
+     */
+    private SettingsStore mStore;
+
+    /**
+     * The selection of a single setting by its key.
+     */
+    private static final String SELECTION_BY_KEY = SettingsContract.KEY + "=?";
+
+    /**
+     * The beginning of the selection of settings by their IDs.
+     * @see #parseIdSelection(String, String[])
+     */
+    private static final String SELECTION_BY_IDS_PREFIX = SettingsContract._ID + " IN (";
+
+    /**
+     * The maximum number of IDs bound to a statement.
+     * SQLite limits the number of host parameters in a statement to 999.
      */
-    private final ContentValues mValues = new ContentValues();
+    private static final int MAX_IDS_PER_STATEMENT = 500;
 
     private static final int SETTINGS = 1000;
     private static final int SETTINGS_ID = 1001;
+    private static final int SETTINGS_KEY = 1002;
+
+    private static final int CHANGES = 2000;
 
     static {
         final UriMatcher matcher = sUriMatcher;
         matcher.addURI(SettingsContract.AUTHORITY, "settings", SETTINGS);
         matcher.addURI(SettingsContract.AUTHORITY, "settings/#", SETTINGS_ID);
+        matcher.addURI(SettingsContract.AUTHORITY, "settings/key/*", SETTINGS_KEY);
+        matcher.addURI(SettingsContract.AUTHORITY, "changes", CHANGES);
     }
 
     private interface SettingsDeleteQuery {
@@ -100,10 +183,26 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
          * The query columns to delete records from the settings table.
          */
         public static final String[] COLUMNS = new String[] {
-            SettingsContract._ID
+            SettingsContract._ID,
+            SettingsContract.KEY
+        };
+
+        public static final int _ID = 0;
+        public static final int KEY = 1;
+    }
+
+    private interface SettingsMigrationQuery {
+
+        /**
+         * The query columns to convert the values of the settings table.
+         */
+        public static final String[] COLUMNS = new String[] {
+            SettingsContract._ID,
+            SettingsContract.VALUE
         };
 
         public static final int _ID = 0;
+        public static final int VALUE = 1;
     }
 
     private interface SettingsUpdateQuery {
@@ -112,10 +211,12 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
          * The query columns to update records for the settings table.
          */
         public static final String[] COLUMNS = new String[] {
-            SettingsContract._ID
+            SettingsContract._ID,
+            SettingsContract.KEY
         };
 
-        public static int _ID = 0;
+        public static final int _ID = 0;
+        public static final int KEY = 1;
     }
 
     private static final ProjectionMap sSettingsProjectionMap = ProjectionMap.builder()
@@ -129,27 +230,131 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
     public boolean onCreate() {
         mContext = getContext();
         mDatabaseHelper = DatabaseHelper.getInstance(mContext);
-        mSettingsHelper = new ThreadLocal<DatabaseHelper>();
-        mSettingsHelper.set(mDatabaseHelper);
+        // The journal mode should be configured before the database is opened.
+        mDatabaseHelper.setWriteAheadLogging(isWriteAheadLoggingEnabled(),
+                getWalAutoCheckpoint());
         mTransactionHolder = new ThreadLocal<Transaction>();
+        if (isMemoryStoreEnabled()) {
+            mStore = new SettingsStore(DatabaseHelper.Tables.SETTINGS);
+            startStoreLoading();
+        }
+        startValueFormatMigration();
+
+        // Notifications of the last transactions may have been lost if the previous process
+        // died while notifying, so observers are asked to catch up with the change log.
+        mContext.getContentResolver().notifyChange(SettingsContract.CONTENT_URI, null);
+        return true;
+    }
+
+    /**
+     * Returns true if the database should be opened in write-ahead logging mode.
+     * Reads can proceed while a batch holds a write transaction in this mode.
+     * Subclasses can override this method to use the rollback journal instead.
+     *
+     * @return true if write-ahead logging should be enabled.
+     */
+    protected boolean isWriteAheadLoggingEnabled() {
         return true;
     }
 
+    /**
+     * Returns true if the settings table should be copied into memory when this provider is
+     * created. The copy is loaded on a background thread. Once it has been loaded, queries
+     * for all settings, for settings by their IDs and for a setting by its key are served
+     * from the copy, and the database is read only to update the copy with the rows changed
+     * by each finished transaction.
+     * Subclasses can override this method to enable the copy for a small set of settings.
+     *
+     * @return true if the in-memory copy should be used.
+     */
+    protected boolean isMemoryStoreEnabled() {
+        return false;
+    }
+
+    /**
+     * Returns the number of pages in the write-ahead log that triggers an automatic
+     * checkpoint. Subclasses can override this method to trade the size of the log
+     * for the frequency of checkpoints.
+     *
+     * @return the number of pages, or zero or a negative value to disable automatic
+     *         checkpoints.
+     */
+    protected int getWalAutoCheckpoint() {
+        return DEFAULT_WAL_AUTO_CHECKPOINT;
+    }
+
+    /**
+     * Returns the time to sleep after a transaction was actually yielded.
+     *
+     * @return the time in milliseconds.
+     * @see SQLiteDatabase#yieldIfContendedSafely(long)
+     */
+    protected long getSleepAfterYieldDelay() {
+        return isWriteAheadLoggingEnabled() ? SLEEP_AFTER_YIELD_DELAY_WAL
+                : SLEEP_AFTER_YIELD_DELAY;
+    }
+
+    /**
+     * Converts the values stored in an old format on a background thread, so that opening
+     * the database is not blocked by the conversion.
+     */
+    private void startValueFormatMigration() {
+        final DatabaseHelper helper = mDatabaseHelper;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                helper.migrateValueFormatIfNeeded();
+            }
+        }, VALUE_FORMAT_MIGRATION_THREAD_NAME);
+        thread.start();
+    }
+
+    /**
+     * Loads the in-memory copy of the settings table on a background thread.
+     * Queries are served by the database until the copy has been loaded.
+     */
+    private void startStoreLoading() {
+        final DatabaseHelper helper = mDatabaseHelper;
+        final SettingsStore store = mStore;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                store.load(helper.getReadableDatabase());
+            }
+        }, STORE_LOADING_THREAD_NAME);
+        thread.start();
+    }
+
     @Override
     public void shutdown() {
         super.shutdown();
-        mSettingsHelper.remove();
         mTransactionHolder.remove();
+        synchronized (this) {
+            if (mStatements != null) {
+                mStatements.close();
+                mStatements = null;
+            }
+        }
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
-        mSettingsHelper.set(mDatabaseHelper);
-        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
         final int match = sUriMatcher.match(uri);
+        if (match == CHANGES) {
+            return queryChanges(uri);
+        }
+
+        Cursor cursor = queryStore(match, uri, projection, selection, selectionArgs, sortOrder);
+        if (cursor != null) {
+            cursor.setNotificationUri(mContext.getContentResolver(), uri);
+            return cursor;
+        }
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
         setTablesProjectionMap(match, builder);
-        Cursor cursor = null;
         switch (match) {
             case SETTINGS:
                 cursor = querySetting(builder, projection, selection, selectionArgs, sortOrder);
@@ -161,6 +366,14 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
                 cursor = querySetting(builder, projection, selection, selectionArgs,
                         sortOrder);
                 break;
+            case SETTINGS_KEY:
+                // The key is unique, so the row is looked up with the index of the key.
+                String key = uri.getLastPathSegment();
+                selectionArgs = insertSelectionArg(selectionArgs, key);
+                builder.appendWhere(SettingsContract.KEY + "=?");
+                cursor = querySetting(builder, projection, selection, selectionArgs,
+                        sortOrder);
+                break;
             default:
                 break;
         }
@@ -173,9 +386,87 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
         return cursor;
     }
 
+    /**
+     * Serves the query from the in-memory copy of the settings table if possible.
+     *
+     * @param match The code for matched node of a {@link Uri}.
+     * @param uri The {@link Uri} of the query.
+     * @param projection The requested columns.
+     * @param selection The selection of the query.
+     * @param selectionArgs The arguments for the selection.
+     * @param sortOrder The order of the rows.
+     * @return the {@link Cursor} of the settings, or null if the query should be served by
+     *         the database.
+     * @see #isMemoryStoreEnabled()
+     */
+    private Cursor queryStore(int match, Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        SettingsStore store = mStore;
+        if (store == null || !store.isLoaded() || !SettingsStore.canProject(projection)) {
+            return null;
+        }
+
+        switch (match) {
+            case SETTINGS:
+                if (sortOrder != null) {
+                    return null;
+                } else if (selection == null) {
+                    return store.queryAll(projection);
+                } else if (SELECTION_BY_KEY.equals(selection)
+                        && selectionArgs != null && selectionArgs.length == 1) {
+                    return store.queryByKey(projection, selectionArgs[0]);
+                }
+
+                List<Long> ids = parseIdSelection(selection, selectionArgs);
+                return (ids != null) ? store.queryByIds(projection, ids) : null;
+            case SETTINGS_ID:
+                // A single row is in any order.
+                if (selection != null) {
+                    return null;
+                }
+                return store.queryByIds(projection,
+                        Collections.singletonList(ContentUris.parseId(uri)));
+            case SETTINGS_KEY:
+                if (selection != null) {
+                    return null;
+                }
+                return store.queryByKey(projection, uri.getLastPathSegment());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the IDs if the selection has the form {@code _id IN (?,...,?)}.
+     *
+     * @param selection The selection of the query.
+     * @param selectionArgs The arguments for the selection.
+     * @return the IDs in the selection, or null if the selection has another form.
+     */
+    private static List<Long> parseIdSelection(String selection, String[] selectionArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0
+                || !selection.startsWith(SELECTION_BY_IDS_PREFIX)) {
+            return null;
+        }
+
+        if (!getIdSelection(selectionArgs.length).equals(selection)) {
+            return null;
+        }
+
+        List<Long> ids = new ArrayList<Long>(selectionArgs.length);
+        for (String arg : selectionArgs) {
+            try {
+                ids.add(Long.parseLong(arg));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ids;
+    }
+
     private Cursor querySetting(SQLiteQueryBuilder builder, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
-        DatabaseHelper helper = mSettingsHelper.get();
+        DatabaseHelper helper = mDatabaseHelper;
         SQLiteDatabase db = helper.getReadableDatabase();
         Cursor cursor = builder.query(db, projection, selection, selectionArgs, null, null,
                 sortOrder, null);
@@ -187,6 +478,29 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
         return cursor;
     }
 
+    /**
+     * Returns the changes committed after the sequence given by {@link SettingsContract#SINCE}.
+     * The projection of the result is fixed.
+     *
+     * @param uri The {@link Uri} of the query.
+     * @return the {@link Cursor} of the changes ordered by the sequence.
+     * @see SettingsContract#CHANGES_URI
+     */
+    private Cursor queryChanges(Uri uri) {
+        String since = uri.getQueryParameter(SettingsContract.SINCE);
+        long sequence = 0;
+        if (since != null) {
+            try {
+                sequence = Long.parseLong(since);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid sequence : " + since);
+            }
+        }
+
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        return mDatabaseHelper.queryChanges(db, sequence);
+    }
+
     /**
      * Starts a transaction for the caller thread.
      * @param callerIsBatch The flag indicating whether the method is called for a batch operation.
@@ -195,7 +509,7 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
     private Transaction startTransaction(boolean callerIsBatch) {
         Transaction transaction = mTransactionHolder.get();
         if (transaction == null) {
-            DatabaseHelper helper = mSettingsHelper.get();
+            DatabaseHelper helper = mDatabaseHelper;
             SQLiteDatabase db = helper.getWritableDatabase();
             transaction = new Transaction(callerIsBatch);
             transaction.startTransactionForDb(db, SETTINGS_DATABASE_TAG, this);
@@ -212,28 +526,90 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
     private void endTransaction(boolean callerIsBatch) {
         Transaction transaction = mTransactionHolder.get();
         if (transaction != null && (!transaction.isBatch() || callerIsBatch)) {
+            Collection<Uri> dirtyUris = null;
+            boolean batchChange = false;
             try {
+                transaction.finish(callerIsBatch);
+                // The changes rolled back by the database have been discarded in onRollback(),
+                // so only committed rows are notified.
                 if (transaction.isDirty()) {
-                    Set<Uri> dirtyUris = transaction.getDirtyUris();
-                    notifyChange(dirtyUris);
+                    // URIs are built only if the rows are notified one by one.
+                    if (transaction.getDirtyRowCount() > getMaxRowNotifications()) {
+                        batchChange = true;
+                    } else {
+                        dirtyUris = getDirtyUris(transaction);
+                    }
                 }
-                transaction.finish(callerIsBatch);
             } finally {
+                reloadStore(transaction);
+                transaction.clearDirtyRows();
                 // Clear the transaction for the caller thread.
                 mTransactionHolder.set(null);
             }
+
+            // Observers are notified after the commit, since readers do not wait for
+            // the transaction and would otherwise read the rows before the change.
+            if (batchChange) {
+                notifyBatchChange(transaction.getCommittedSequence());
+            } else {
+                notifyChange(dirtyUris);
+            }
+        }
+    }
+
+    /**
+     * Updates the in-memory copy of the settings table with the rows changed by the
+     * finished transaction. The rows are re-read after the transaction, so the copy never
+     * has a row that the database failed to commit, and an update that has written only
+     * some columns is read as a whole.
+     *
+     * @param transaction The finished transaction.
+     */
+    private void reloadStore(Transaction transaction) {
+        SettingsStore store = mStore;
+        int count = transaction.getDirtyCount();
+        if (store == null || count == 0) {
+            return;
+        }
+
+        Set<Long> ids = new HashSet<Long>();
+        for (int i = 0; i < count; i++) {
+            ids.add(transaction.getDirtyId(i));
+        }
+        store.reload(mDatabaseHelper.getReadableDatabase(), ids);
+    }
+
+    /**
+     * Returns the {@link Uri}s to notify of the rows that have changed in the transaction.
+     * If a row has changed more than once, only its last change is notified.
+     * The rows are notified in the order in which they first changed, so that observers
+     * see the changes in the order of the operations.
+     *
+     * @param transaction The transaction that has changed the rows.
+     * @return the {@link Uri}s to notify.
+     */
+    private List<Uri> getDirtyUris(Transaction transaction) {
+        int count = transaction.getDirtyCount();
+        // The index of the last change of each row, in the order of the first changes.
+        Map<Long, Integer> lastChanges = new LinkedHashMap<Long, Integer>();
+        for (int i = 0; i < count; i++) {
+            lastChanges.put(transaction.getDirtyId(i), i);
+        }
+
+        List<Uri> uris = new ArrayList<Uri>(lastChanges.size());
+        for (Map.Entry<Long, Integer> entry : lastChanges.entrySet()) {
+            int index = entry.getValue();
+            uris.add(getNotificationUri(entry.getKey(), transaction.getDirtyKey(index),
+                    transaction.getDirtyPayload(index)));
         }
+        return uris;
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        mSettingsHelper.set(mDatabaseHelper);
         Transaction transaction = startTransaction(false);
         try {
             Uri result = insertInTransaction(uri, values);
-            if (result != null) {
-                transaction.markDirty(result);
-            }
             transaction.markSuccessful(false);
             return result;
         } finally {
@@ -242,198 +618,415 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
     }
 
     protected Uri insertInTransaction(Uri uri, ContentValues values) {
+        long id = insertRowInTransaction(uri, values);
+        if (id < 0) {
+            return null;
+        }
+
+        return ContentUris.withAppendedId(SettingsContract.CONTENT_URI, id);
+    }
+
+    /**
+     * Inserts a row in the current transaction and marks it as dirty.
+     *
+     * @param uri The requested {@link Uri}.
+     * @param values The values of the row.
+     * @return the ID of the row, or {@link #INVALID_ID} if failed.
+     */
+    private long insertRowInTransaction(Uri uri, ContentValues values) {
         final int match = sUriMatcher.match(uri);
-        long id = INVALID_ID;
         switch (match) {
             case SETTINGS:
-                id = insertSetting(match, values);
-                break;
+                boolean upsert = uri.getBooleanQueryParameter(SettingsContract.UPSERT, false);
+                return insertSetting(uri, match, values, upsert);
             default:
-                break;
-        }
-
-        if (id < 0) {
-            return null;
+                return INVALID_ID;
         }
-
-        return ContentUris.withAppendedId(uri, id);
     }
 
-    private long insertSetting(int match, ContentValues values) {
+    /**
+     * Inserts a setting into the settings table.
+     * The inserted or updated row is marked as dirty in the current transaction.
+     *
+     * @param uri The requested {@link Uri}.
+     * @param match The code for matched node of a {@link Uri}.
+     * @param values The values of the setting.
+     * @param upsert true if the existing row for the key should be updated instead.
+     * @return the ID of the inserted or updated row, or {@link #INVALID_ID} if failed.
+     * @see SettingsContract#UPSERT
+     */
+    private long insertSetting(Uri uri, int match, ContentValues values, boolean upsert) {
         long settingId = INVALID_ID;
-        mValues.clear();
-        mValues.putAll(values);
-
-        DatabaseHelper helper = mSettingsHelper.get();
+        DatabaseHelper helper = mDatabaseHelper;
         SQLiteDatabase db = helper.getWritableDatabase();
+        SettingsStatements statements = getStatements(db);
         switch (match) {
             case SETTINGS:
-                settingId = db.insert(DatabaseHelper.Tables.SETTINGS, null, mValues);
+                String key = values.getAsString(SettingsContract.KEY);
+                if (upsert && key != null) {
+                    // The row is looked up in the same transaction as the write,
+                    // so no other writer can insert the key in between.
+                    settingId = statements.findSettingId(key);
+                    if (settingId != INVALID_ID && statements.isUnchanged(settingId, values)) {
+                        // The row is neither logged nor notified. The writer resolves its
+                        // pending setting from the returned row when its commit completes.
+                        mSuppressedWriteCount.incrementAndGet();
+                        return settingId;
+                    }
+                }
+
+                if (settingId != INVALID_ID) {
+                    if (SettingsStatements.canBind(values)) {
+                        statements.update(settingId, values);
+                    } else {
+                        db.update(DatabaseHelper.Tables.SETTINGS, withoutId(values),
+                                SettingsContract._ID + "=?",
+                                new String[] { String.valueOf(settingId) });
+                    }
+                } else if (SettingsStatements.canBind(values)) {
+                    settingId = statements.insert(values);
+                } else {
+                    settingId = db.insert(DatabaseHelper.Tables.SETTINGS, null, values);
+                }
                 break;
             default:
                 break;
         }
+
+        if (settingId >= 0) {
+            long sequence = acquireChangeSequence();
+            statements.logChange(settingId, sequence, false);
+
+            mTransactionHolder.get().markDirty(settingId,
+                    values.getAsString(SettingsContract.KEY),
+                    getNotificationPayload(uri, values));
+        }
         return settingId;
     }
 
+    /**
+     * Returns the precompiled statements for the database.
+     * The statements should be used only in a write transaction.
+     *
+     * @param db The writable database.
+     * @return the precompiled statements for the database.
+     */
+    private synchronized SettingsStatements getStatements(SQLiteDatabase db) {
+        if (mStatements == null || mStatements.getDatabase() != db) {
+            if (mStatements != null) {
+                mStatements.close();
+            }
+            mStatements = new SettingsStatements(db);
+        }
+        return mStatements;
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        mSettingsHelper.set(mDatabaseHelper);
         Transaction transaction = startTransaction(false);
         try {
-            List<Uri> deletedUris = deleteInTransaction(uri, selection, selectionArgs);
-            int size = 0;
-            if (deletedUris != null) {
-                size = deletedUris.size();
-                for (Uri deletedUri : deletedUris) {
-                    transaction.markDirty(deletedUri);
-                }
-            }
+            int count = deleteInTransaction(uri, selection, selectionArgs);
             transaction.markSuccessful(false);
-            return size;
+            return count;
         } finally {
             endTransaction(false);
         }
     }
 
-    protected List<Uri> deleteInTransaction(Uri uri, String selection, String[] selectionArgs) {
+    /**
+     * Deletes the rows in the current transaction and marks them as dirty.
+     *
+     * @param uri The requested {@link Uri}.
+     * @param selection The selection for the rows.
+     * @param selectionArgs The arguments for the selection.
+     * @return the number of deleted rows.
+     */
+    protected int deleteInTransaction(Uri uri, String selection, String[] selectionArgs) {
+        Object payload = getDeletionPayload(uri);
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case SETTINGS:
-                return deleteSetting(selection, selectionArgs);
+                if (SELECTION_BY_KEY.equals(selection)
+                        && selectionArgs != null && selectionArgs.length == 1) {
+                    return deleteSettingByKey(selectionArgs[0], payload);
+                }
+                return deleteSetting(selection, selectionArgs, payload);
             case SETTINGS_ID:
                 long settingId = ContentUris.parseId(uri);
                 return deleteSetting(SettingsContract._ID + "=?",
-                        new String[]{ String.valueOf(settingId) });
+                        new String[]{ String.valueOf(settingId) }, payload);
+            case SETTINGS_KEY:
+                if (selection == null) {
+                    return deleteSettingByKey(uri.getLastPathSegment(), payload);
+                }
+                selectionArgs = insertSelectionArg(selectionArgs, uri.getLastPathSegment());
+                selection = DatabaseUtils.concatenateWhere(SELECTION_BY_KEY, selection);
+                return deleteSetting(selection, selectionArgs, payload);
             default:
                 break;
         }
 
-        return null;
+        return 0;
     }
 
-    private List<Uri> deleteSetting(String selection, String[] selectionArgs) {
-        Uri settingsUri = SettingsContract.CONTENT_URI;
-        List<Uri> uris = new ArrayList<Uri>();
-        Cursor cursor = query(settingsUri, SettingsDeleteQuery.COLUMNS,
-                selection, selectionArgs, null);
+    /**
+     * Returns the change sequence for the current transaction of the caller thread.
+     * The first call in a transaction allocates the next sequence, and the sequence is
+     * stored into the database when the transaction is committed.
+     * This method should be called whenever a write operation has changed rows.
+     *
+     * @return the change sequence for the current transaction.
+     * @see #onCommit()
+     */
+    private long acquireChangeSequence() {
+        Transaction transaction = mTransactionHolder.get();
+        if (!transaction.hasChangeSequence()) {
+            SQLiteDatabase db = transaction.getDbForTag(SETTINGS_DATABASE_TAG);
+            long sequence = mDatabaseHelper.getChangeSequence(db) + 1;
+            transaction.setChangeSequence(sequence);
+        }
+        return transaction.getChangeSequence();
+    }
 
-        if (cursor == null) {
-            return uris;
+    /**
+     * Deletes the setting for the key with the precompiled statements.
+     *
+     * @param key The key of the setting.
+     * @param payload The payload for the notification of the deletion.
+     * @return the number of deleted rows.
+     */
+    private int deleteSettingByKey(String key, Object payload) {
+        SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        SettingsStatements statements = getStatements(db);
+        long settingId = statements.findSettingId(key);
+        if (settingId == INVALID_ID) {
+            return 0;
         }
 
-        DatabaseHelper helper = mSettingsHelper.get();
+        statements.logChange(settingId, acquireChangeSequence(), true);
+        statements.deleteByKey(key);
+        mTransactionHolder.get().markDirty(settingId, key, payload);
+        return 1;
+    }
+
+    /**
+     * Deletes the settings that match the selection with a single statement.
+     * The IDs of the matched rows are collected beforehand in the same transaction,
+     * so they are exactly the deleted rows.
+     *
+     * @param selection The selection for the settings table.
+     * @param selectionArgs The arguments for the selection.
+     * @param payload The payload for the notifications of the deletions.
+     * @return the number of deleted rows.
+     */
+    private int deleteSetting(String selection, String[] selectionArgs, Object payload) {
+        Transaction transaction = mTransactionHolder.get();
+        List<Long> ids = new ArrayList<Long>();
+        DatabaseHelper helper = mDatabaseHelper;
+        SQLiteDatabase db = helper.getWritableDatabase();
+        // Only this query sees the selection of the caller. The rows are written with
+        // the resolved IDs bound to the statements.
+        Cursor cursor = querySettingsForWrite(db, SettingsDeleteQuery.COLUMNS,
+                selection, selectionArgs);
         try {
-            int count = 0;
-            int lastCount = 0;
-            while(cursor.moveToNext()) {
-                SQLiteDatabase db = helper.getWritableDatabase();
+            while (cursor.moveToNext()) {
                 long settingId = cursor.getLong(SettingsDeleteQuery._ID);
-                count += db.delete(DatabaseHelper.Tables.SETTINGS,
-                        SettingsContract._ID + "=?", new String[]{ String.valueOf(settingId) });
-                if (count > lastCount) {
-                    uris.add(ContentUris.withAppendedId(SettingsContract.CONTENT_URI, settingId));
-                }
-                lastCount = count;
+                transaction.markDirty(settingId, cursor.getString(SettingsDeleteQuery.KEY),
+                        payload);
+                ids.add(settingId);
             }
         } finally {
             cursor.close();
         }
 
-        return uris;
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        long sequence = acquireChangeSequence();
+        int size = ids.size();
+        for (int from = 0; from < size; from += MAX_IDS_PER_STATEMENT) {
+            List<Long> chunk = ids.subList(from, Math.min(from + MAX_IDS_PER_STATEMENT, size));
+            String idSelection = getIdSelection(chunk.size());
+            String[] idSelectionArgs = getIdSelectionArgs(chunk);
+            // The tombstones are logged while the rows still exist.
+            helper.logChanges(db, idSelection, idSelectionArgs, sequence, true);
+            db.delete(DatabaseHelper.Tables.SETTINGS, idSelection, idSelectionArgs);
+        }
+        return size;
+    }
+
+    /**
+     * Queries the settings table for a write operation through the strict
+     * {@link SQLiteQueryBuilder}, so that the selection of the caller cannot change
+     * the shape of the statement.
+     *
+     * @param db The writable database in the current transaction.
+     * @param columns The columns to return.
+     * @param selection The selection of the caller.
+     * @param selectionArgs The arguments for the selection.
+     * @return the {@link Cursor} of the matched rows.
+     */
+    private Cursor querySettingsForWrite(SQLiteDatabase db, String[] columns, String selection,
+            String[] selectionArgs) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        setTablesProjectionMap(SETTINGS, builder);
+        return builder.query(db, columns, selection, selectionArgs, null, null, null, null);
+    }
+
+    /**
+     * Returns the selection {@code _id IN (?,...,?)} for the number of IDs.
+     *
+     * @param count The number of IDs.
+     * @return the selection.
+     */
+    private static String getIdSelection(int count) {
+        StringBuilder selection = new StringBuilder(SELECTION_BY_IDS_PREFIX);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append('?');
+        }
+        return selection.append(')').toString();
+    }
+
+    private static String[] getIdSelectionArgs(List<Long> ids) {
+        String[] selectionArgs = new String[ids.size()];
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selectionArgs[i] = String.valueOf(ids.get(i));
+        }
+        return selectionArgs;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        mSettingsHelper.set(mDatabaseHelper);
         Transaction transaction = startTransaction(false);
         try {
-            List<Uri> updatedUris = updateInTransaction(uri, values, selection, selectionArgs);
-            int size = 0;
-            if (updatedUris != null) {
-                size = updatedUris.size();
-                for (Uri updatedUri : updatedUris) {
-                    transaction.markDirty(updatedUri);
-                }
-            }
+            int count = updateInTransaction(uri, values, selection, selectionArgs);
             transaction.markSuccessful(false);
-            return size;
+            return count;
         } finally {
             endTransaction(false);
         }
     }
 
-    protected List<Uri> updateInTransaction(Uri uri, ContentValues values, String selection,
+    /**
+     * Updates the rows in the current transaction and marks them as dirty.
+     *
+     * @param uri The requested {@link Uri}.
+     * @param values The values to update.
+     * @param selection The selection for the rows.
+     * @param selectionArgs The arguments for the selection.
+     * @return the number of updated rows.
+     */
+    protected int updateInTransaction(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
-        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        Object payload = getNotificationPayload(uri, values);
         final int match = sUriMatcher.match(uri);
-        setTablesProjectionMap(match, builder);
         switch (match) {
             case SETTINGS:
-                return updateSetting(builder, values, selection, selectionArgs);
+                return updateSetting(values, selection, selectionArgs, payload);
             case SETTINGS_ID:
                 String settingId = uri.getLastPathSegment();
                 selectionArgs = insertSelectionArg(selectionArgs, settingId);
-                builder.appendWhere(SettingsContract._ID + "=?");
-                return updateSetting(builder, values, selection, selectionArgs);
+                selection = DatabaseUtils.concatenateWhere(SettingsContract._ID + "=?",
+                        selection);
+                return updateSetting(values, selection, selectionArgs, payload);
+            case SETTINGS_KEY:
+                selectionArgs = insertSelectionArg(selectionArgs, uri.getLastPathSegment());
+                selection = DatabaseUtils.concatenateWhere(SELECTION_BY_KEY, selection);
+                return updateSetting(values, selection, selectionArgs, payload);
             default:
                 break;
         }
 
-        return null;
+        return 0;
     }
 
-    private List<Uri> updateSetting(SQLiteQueryBuilder builder, ContentValues values,
-            String selection, String[] selectionArgs) {
-        List<Uri> uris = new ArrayList<Uri>();
-        mValues.clear();
-        mValues.putAll(values);
+    /**
+     * Updates the settings that match the selection with a single statement.
+     * The IDs of the matched rows are collected beforehand in the same transaction,
+     * so they are exactly the updated rows.
+     *
+     * @param values The values to update.
+     * @param selection The selection for the settings table.
+     * @param selectionArgs The arguments for the selection.
+     * @param payload The payload for the notifications of the updates.
+     * @return the number of updated rows.
+     */
+    private int updateSetting(ContentValues values, String selection,
+            String[] selectionArgs, Object payload) {
         // Cannot update the ID field.
-        mValues.remove(SettingsContract._ID);
-
-        DatabaseHelper helper = mSettingsHelper.get();
-        SQLiteDatabase db = helper.getWritableDatabase();
-        Cursor cursor = builder.query(db, SettingsUpdateQuery.COLUMNS, selection, selectionArgs,
-                null, null, null, null);
-
-        if (cursor == null) {
-            return uris;
+        values = withoutId(values);
+        if (values.size() == 0) {
+            return 0;
         }
 
-        int count = 0;
+        Transaction transaction = mTransactionHolder.get();
+        List<Long> ids = new ArrayList<Long>();
+        // The rows are notified with the new key if the key is updated.
+        String newKey = values.getAsString(SettingsContract.KEY);
+
+        DatabaseHelper helper = mDatabaseHelper;
+        SQLiteDatabase db = helper.getWritableDatabase();
+        // Only this query sees the selection of the caller. The rows are written with
+        // the resolved IDs bound to the statements.
+        Cursor cursor = querySettingsForWrite(db, SettingsUpdateQuery.COLUMNS,
+                selection, selectionArgs);
         try {
-            int lastCount = 0;
-            while(cursor.moveToNext()) {
+            while (cursor.moveToNext()) {
                 long settingId = cursor.getLong(SettingsUpdateQuery._ID);
-                if (mValues.size() > 0) {
-                    count += db.update(DatabaseHelper.Tables.SETTINGS, mValues,
-                            SettingsContract._ID + " =?", new String[]{String.valueOf(settingId)});
-                    if (count > lastCount) {
-                        uris.add(ContentUris.withAppendedId(
-                                SettingsContract.CONTENT_URI, settingId));
-                    }
-                    lastCount = count;
-                }
+                String key = (newKey != null) ? newKey : cursor.getString(SettingsUpdateQuery.KEY);
+                transaction.markDirty(settingId, key, payload);
+                ids.add(settingId);
             }
         } finally {
             cursor.close();
         }
-        return uris;
+
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        long sequence = acquireChangeSequence();
+        int size = ids.size();
+        for (int from = 0; from < size; from += MAX_IDS_PER_STATEMENT) {
+            List<Long> chunk = ids.subList(from, Math.min(from + MAX_IDS_PER_STATEMENT, size));
+            String idSelection = getIdSelection(chunk.size());
+            String[] idSelectionArgs = getIdSelectionArgs(chunk);
+            helper.logChanges(db, idSelection, idSelectionArgs, sequence, false);
+            db.update(DatabaseHelper.Tables.SETTINGS, values, idSelection, idSelectionArgs);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the values without the {@link SettingsContract#_ID} column.
+     * The given values are never modified, since they belong to the caller.
+     *
+     * @param values The values to write.
+     * @return the values, or a copy of them if they have the ID column.
+     */
+    private static ContentValues withoutId(ContentValues values) {
+        if (!values.containsKey(SettingsContract._ID)) {
+            return values;
+        }
+
+        ContentValues copy = new ContentValues(values);
+        copy.remove(SettingsContract._ID);
+        return copy;
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        mSettingsHelper.set(mDatabaseHelper);
         Transaction transaction = startTransaction(true);
         int numValues = values.length;
         int opCount = 0;
         try {
             for (int i = 0; i < numValues; i++) {
-                Uri inserted = insertInTransaction(uri, values[i]);
-                if (inserted != null) {
-                    // Add the URI of the table as a dirty URI.
-                    transaction.markDirty(inserted);
-                }
+                // No URI is built for each row.
+                insertRowInTransaction(uri, values[i]);
 
                 if (++opCount >= BULK_INSERTS_PER_YIELD_POINT) {
                     opCount = 0;
@@ -455,7 +1048,6 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
-        mSettingsHelper.set(mDatabaseHelper);
         int ypCount = 0;
         int opCount = 0;
         Transaction transaction = startTransaction(true);
@@ -499,7 +1091,38 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
      */
     protected boolean yield(Transaction transaction) {
         SQLiteDatabase db = transaction.getDbForTag(SETTINGS_DATABASE_TAG);
-        return db != null && db.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+        return db != null && db.yieldIfContendedSafely(getSleepAfterYieldDelay());
+    }
+
+    /**
+     * Returns the maximum number of rows notified one by one for a transaction.
+     * If a transaction has changed more rows, a single batched notification is sent instead.
+     * Subclasses can override this method to change the threshold.
+     *
+     * @return the maximum number of row notifications for a transaction.
+     * @see #notifyBatchChange(long)
+     */
+    protected int getMaxRowNotifications() {
+        return MAX_ROW_NOTIFICATIONS;
+    }
+
+    /**
+     * Notifies the registered observer that many rows were changed.
+     * Observers catch up with the change log instead of re-reading each row.
+     *
+     * @param sequence The last committed sequence, or a negative value if unknown.
+     * @see SettingsContract#CONTENT_URI
+     */
+    protected void notifyBatchChange(long sequence) {
+        Uri uri = SettingsContract.CONTENT_URI;
+        if (sequence >= 0) {
+            long epoch = mDatabaseHelper.getEpoch(mDatabaseHelper.getReadableDatabase());
+            uri = uri.buildUpon()
+                    .appendQueryParameter(SettingsContract.SEQUENCE, String.valueOf(sequence))
+                    .appendQueryParameter(SettingsContract.EPOCH, String.valueOf(epoch))
+                    .build();
+        }
+        mContext.getContentResolver().notifyChange(uri, null);
     }
 
     /**
@@ -507,7 +1130,7 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
      *
      * @param dirtyUris The {@link Uri}s that were changed.
      */
-    protected void notifyChange(Set<Uri> dirtyUris) {
+    protected void notifyChange(Collection<Uri> dirtyUris) {
         if (dirtyUris == null || dirtyUris.isEmpty()) {
             return;
         }
@@ -517,6 +1140,113 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
         }
     }
 
+    /**
+     * Returns the payload for the notifications of rows written by the request.
+     * The payload is kept in the transaction instead of a {@link Uri}, so that no
+     * {@link Uri} is built for a change that is not notified one by one.
+     *
+     * @param requestUri The {@link Uri} of the write operation.
+     * @param values The values written to the rows.
+     * @return the values if the caller requested {@link SettingsContract#NOTIFY_VALUE},
+     *         or null otherwise.
+     */
+    private Object getNotificationPayload(Uri requestUri, ContentValues values) {
+        if (!requestUri.getBooleanQueryParameter(SettingsContract.NOTIFY_VALUE, false)) {
+            return null;
+        }
+        return values;
+    }
+
+    /**
+     * Returns the payload for the notifications of rows deleted by the request.
+     *
+     * @param requestUri The {@link Uri} of the delete operation.
+     * @return {@link #DELETION_PAYLOAD} if the caller requested
+     *         {@link SettingsContract#NOTIFY_VALUE}, or null otherwise.
+     */
+    private Object getDeletionPayload(Uri requestUri) {
+        if (!requestUri.getBooleanQueryParameter(SettingsContract.NOTIFY_VALUE, false)) {
+            return null;
+        }
+        return DELETION_PAYLOAD;
+    }
+
+    /**
+     * Returns the {@link Uri} to notify of the change of a row.
+     * If the key of the row is known, the {@link Uri} is the key {@link Uri} of the row with
+     * the {@link SettingsContract#_ID} parameter, so that observers of a single key are not
+     * notified of the changes of other rows.
+     * If the change has the written values, the key, type and value of the row are appended
+     * to the {@link Uri} so that observers need not query the row.
+     * Binary values and long values are never appended.
+     * If the change is a deletion, the {@link Uri} is marked with
+     * {@link SettingsContract#DELETED}.
+     *
+     * @param id The ID of the changed row.
+     * @param key The key of the changed row, or null if unknown.
+     * @param payload The payload of the change.
+     * @return the {@link Uri} to notify of the change.
+     * @see #getNotificationPayload(Uri, ContentValues)
+     * @see #getDeletionPayload(Uri)
+     */
+    private Uri getNotificationUri(long id, String key, Object payload) {
+        Uri rowUri;
+        if (key != null) {
+            rowUri = SettingsContract.getKeyUri(key).buildUpon()
+                    .appendQueryParameter(SettingsContract._ID, String.valueOf(id))
+                    .build();
+        } else {
+            rowUri = ContentUris.withAppendedId(SettingsContract.CONTENT_URI, id);
+        }
+        if (payload == DELETION_PAYLOAD) {
+            return rowUri.buildUpon()
+                    .appendQueryParameter(SettingsContract.DELETED, String.valueOf(true))
+                    .build();
+        }
+
+        if (!(payload instanceof ContentValues)) {
+            return rowUri;
+        }
+
+        ContentValues values = (ContentValues) payload;
+        if (values.get(SettingsContract.VALUE) instanceof byte[]) {
+            return rowUri;
+        }
+
+        key = values.getAsString(SettingsContract.KEY);
+        String type = values.getAsString(SettingsContract.TYPE);
+        String value = values.getAsString(SettingsContract.VALUE);
+        if (key == null || type == null || value == null
+                || key.length() + value.length() > MAX_NOTIFIED_VALUE_LENGTH) {
+            return rowUri;
+        }
+
+        return rowUri.buildUpon()
+                .appendQueryParameter(SettingsContract.KEY, key)
+                .appendQueryParameter(SettingsContract.TYPE, type)
+                .appendQueryParameter(SettingsContract.VALUE, value)
+                .build();
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (SettingsContract.METHOD_GET_SEQUENCE.equals(method)) {
+            SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+            Bundle result = new Bundle();
+            result.putLong(SettingsContract.KEY_SEQUENCE, mDatabaseHelper.getChangeSequence(db));
+            result.putLong(SettingsContract.KEY_EPOCH, mDatabaseHelper.getEpoch(db));
+            result.putLong(SettingsContract.KEY_OLDEST_SEQUENCE,
+                    mDatabaseHelper.getOldestChangeSequence(db));
+            return result;
+        } else if (SettingsContract.METHOD_GET_SUPPRESSED_WRITE_COUNT.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(SettingsContract.KEY_SUPPRESSED_WRITE_COUNT,
+                    mSuppressedWriteCount.get());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
     @Override
     public String getType(Uri uri) {
         int match = sUriMatcher.match(uri);
@@ -524,7 +1254,10 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
             case SETTINGS:
                 return SettingsContract.CONTENT_TYPE;
             case SETTINGS_ID:
+            case SETTINGS_KEY:
                 return SettingsContract.CONTENT_ITEM_TYPE;
+            case CHANGES:
+                return SettingsContract.CHANGES_CONTENT_TYPE;
             default:
                 throw new IllegalArgumentException();
         }
@@ -540,6 +1273,7 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
         switch (match) {
             case SETTINGS:
             case SETTINGS_ID:
+            case SETTINGS_KEY:
                 final ProjectionMap settingsProjection = sSettingsProjectionMap;
                 builder.setTables(DatabaseHelper.Tables.SETTINGS);
                 builder.setProjectionMap(settingsProjection);
@@ -565,20 +1299,92 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
     /**
      * The helper class for the settings database.
      */
-    private static final class DatabaseHelper extends SQLiteOpenHelper {
+    /* package */ static final class DatabaseHelper extends SQLiteOpenHelper {
 
         /**
          * The database file name.
          */
         private static final String DATABASE_NAME = "settings.db";
-        /* package */ static final int DATABASE_VERSION = 1;
+        /* package */ static final int DATABASE_VERSION = 7;
+
+        /**
+         * The number of the latest sequences whose changes are always kept in the change log.
+         */
+        private static final long RETAINED_CHANGE_SEQUENCES = 1000;
+
+        /**
+         * The interval of sequences to compact the change log.
+         */
+        private static final long COMPACTION_INTERVAL = 100;
 
         private static DatabaseHelper sInstance = null;
 
+        /**
+         * Indicates whether the database is opened in write-ahead logging mode.
+         */
+        private volatile boolean mWriteAheadLogging;
+
+        /**
+         * The number of pages in the write-ahead log that triggers a checkpoint.
+         */
+        private volatile int mWalAutoCheckpoint = DEFAULT_WAL_AUTO_CHECKPOINT;
+
         public interface Tables {
             public static final String SETTINGS = "settings";
+            public static final String PROPERTIES = "properties";
+            public static final String CHANGES = "changes";
         }
 
+        /**
+         * The columns of the change log.
+         * The log holds the last change of each row, and a deleted row is kept as a tombstone
+         * until the log is compacted.
+         */
+        public interface ChangesColumns {
+            public static final String SETTING_ID = "setting_id";
+            public static final String SEQUENCE = SettingsContract.SEQUENCE;
+            public static final String DELETED = SettingsContract.DELETED;
+        }
+
+        /**
+         * The columns of the properties table that holds the internal state of the database.
+         */
+        public interface PropertiesColumns {
+            public static final String PROPERTY_KEY = "property_key";
+            public static final String PROPERTY_VALUE = "property_value";
+        }
+
+        /**
+         * The property key for the sequence of the last committed change.
+         */
+        private static final String PROPERTY_CHANGE_SEQUENCE = "change_sequence";
+
+        /**
+         * The property key for the sequence up to which the change log has been compacted.
+         */
+        private static final String PROPERTY_OLDEST_CHANGE_SEQUENCE = "oldest_change_sequence";
+
+        /**
+         * The property key for the epoch of the database.
+         * @see SettingsContract#KEY_EPOCH
+         */
+        private static final String PROPERTY_EPOCH = "epoch";
+
+        /**
+         * The property key for the format of object values in the settings table.
+         */
+        private static final String PROPERTY_VALUE_FORMAT = "value_format";
+
+        /**
+         * The value format in which sets of strings are stored with Java serialization.
+         */
+        private static final long VALUE_FORMAT_SERIALIZED = 0;
+
+        /**
+         * The value format in which sets of strings are stored by {@link StringSetCodec}.
+         */
+        private static final long VALUE_FORMAT_STRING_SET_CODEC = 1;
+
         /**
          * Returns an instance of the database helper.
          * @param context The application context.
@@ -595,9 +1401,63 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
             super(context, databaseName, null, DATABASE_VERSION);
         }
 
+        /**
+         * Configures the journal mode of the database.
+         * This method should be called before the database is opened.
+         * @param enabled true if write-ahead logging should be enabled.
+         * @param autoCheckpoint The number of pages in the write-ahead log that triggers
+         *        a checkpoint.
+         */
+        public void setWriteAheadLogging(boolean enabled, int autoCheckpoint) {
+            mWriteAheadLogging = enabled;
+            mWalAutoCheckpoint = autoCheckpoint;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                setWriteAheadLoggingEnabled(enabled);
+            }
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (!mWriteAheadLogging || db.isReadOnly()) {
+                return;
+            }
+
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                // The mode cannot be configured before opening on older platforms.
+                db.enableWriteAheadLogging();
+            }
+
+            Cursor cursor = db.rawQuery("PRAGMA wal_autocheckpoint=" + mWalAutoCheckpoint,
+                    null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             createSettingsTable(db);
+            createPropertiesTable(db);
+            createChangesTable(db);
+            addProperty(db, PROPERTY_VALUE_FORMAT, VALUE_FORMAT_STRING_SET_CODEC);
+            // The sequence starts over, so clients must not compare it with older sequences.
+            addProperty(db, PROPERTY_EPOCH, newEpoch());
+        }
+
+        /**
+         * Returns a new random epoch that is never zero.
+         * @return the new epoch.
+         */
+        private static long newEpoch() {
+            Random random = new Random();
+            long epoch;
+            do {
+                epoch = random.nextLong();
+            } while (epoch == 0);
+            return epoch;
         }
 
         /**
@@ -607,19 +1467,349 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
          */
         private void createSettingsTable(SQLiteDatabase db) {
             db.execSQL("DROP TABLE IF EXISTS " + Tables.SETTINGS);
-            db.execSQL("CREATE TABLE " + Tables.SETTINGS +
+            createSettingsTable(db, Tables.SETTINGS);
+        }
+
+        private void createSettingsTable(SQLiteDatabase db, String table) {
+            db.execSQL("CREATE TABLE " + table +
                     " (" +
                         SettingsContract._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                         SettingsContract.KEY + " TEXT NOT NULL," +
-                        SettingsContract.TYPE + " TEXT NOT NULL," +
-                        SettingsContract.VALUE + " TEXT," +
+                        SettingsContract.TYPE + " INTEGER NOT NULL," +
+                        // No affinity, so that values are kept in their storage classes.
+                        SettingsContract.VALUE + "," +
                         "UNIQUE (" + SettingsContract.KEY + ")" +
                     ");");
         }
 
+        /**
+         * Creates a new properties table in the database.
+         * Note that the properties table will be dropped if exists.
+         * @param db The {@link SQLiteDatabase} in which a new properties table is created.
+         */
+        private void createPropertiesTable(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.PROPERTIES);
+            db.execSQL("CREATE TABLE " + Tables.PROPERTIES +
+                    " (" +
+                        PropertiesColumns.PROPERTY_KEY + " TEXT PRIMARY KEY," +
+                        PropertiesColumns.PROPERTY_VALUE + " INTEGER NOT NULL" +
+                    ");");
+            db.execSQL("INSERT INTO " + Tables.PROPERTIES +
+                    " (" + PropertiesColumns.PROPERTY_KEY + ","
+                    + PropertiesColumns.PROPERTY_VALUE + ") VALUES (?, 0)",
+                    new Object[] { PROPERTY_CHANGE_SEQUENCE });
+        }
+
+        /**
+         * Creates a new change log in the database.
+         * Note that the change log will be dropped if exists.
+         * Changes before the current sequence are not logged, so the current sequence becomes
+         * the oldest sequence that clients can catch up from.
+         * @param db The {@link SQLiteDatabase} in which a new change log is created.
+         */
+        private void createChangesTable(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.CHANGES);
+            db.execSQL("CREATE TABLE " + Tables.CHANGES +
+                    " (" +
+                        ChangesColumns.SETTING_ID + " INTEGER PRIMARY KEY," +
+                        ChangesColumns.SEQUENCE + " INTEGER NOT NULL," +
+                        ChangesColumns.DELETED + " INTEGER NOT NULL DEFAULT 0" +
+                    ");");
+            db.execSQL("CREATE INDEX " + Tables.CHANGES + "_" + ChangesColumns.SEQUENCE +
+                    "_index ON " + Tables.CHANGES + " (" + ChangesColumns.SEQUENCE + ");");
+            db.execSQL("INSERT OR REPLACE INTO " + Tables.PROPERTIES +
+                    " (" + PropertiesColumns.PROPERTY_KEY + ","
+                    + PropertiesColumns.PROPERTY_VALUE + ") VALUES (?, ?)",
+                    new Object[] { PROPERTY_OLDEST_CHANGE_SEQUENCE, getChangeSequence(db) });
+        }
+
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // Nothing to do here yet.
+            if (oldVersion < 2) {
+                createPropertiesTable(db);
+            }
+
+            if (oldVersion < 3) {
+                createChangesTable(db);
+            }
+
+            if (oldVersion < 4) {
+                // The existing rows are converted later by migrateValueFormatIfNeeded().
+                addProperty(db, PROPERTY_VALUE_FORMAT, VALUE_FORMAT_SERIALIZED);
+            }
+
+            if (oldVersion < 5) {
+                upgradeToTypeCodes(db);
+            }
+
+            if (oldVersion < 6) {
+                upgradeToTypedValues(db);
+            }
+
+            if (oldVersion < 7) {
+                addProperty(db, PROPERTY_EPOCH, newEpoch());
+            }
+        }
+
+        /**
+         * Converts the class names in the type column into type codes.
+         * @param db The {@link SQLiteDatabase} that holds the settings table.
+         */
+        private void upgradeToTypeCodes(SQLiteDatabase db) {
+            rebuildSettingsTable(db,
+                    "CASE " + SettingsContract.TYPE +
+                        " WHEN '" + Boolean.class.getName() + "'" +
+                            " THEN " + SettingsContract.TYPE_BOOLEAN +
+                        " WHEN '" + Float.class.getName() + "'" +
+                            " THEN " + SettingsContract.TYPE_FLOAT +
+                        " WHEN '" + Integer.class.getName() + "'" +
+                            " THEN " + SettingsContract.TYPE_INTEGER +
+                        " WHEN '" + Long.class.getName() + "'" +
+                            " THEN " + SettingsContract.TYPE_LONG +
+                        " WHEN '" + String.class.getName() + "'" +
+                            " THEN " + SettingsContract.TYPE_STRING +
+                        " ELSE " + SettingsContract.TYPE_OBJECT +
+                    " END",
+                    SettingsContract.VALUE);
+        }
+
+        /**
+         * Moves the values out of the text affinity, so that numbers are stored as
+         * integers or reals instead of their text representations.
+         * @param db The {@link SQLiteDatabase} that holds the settings table.
+         */
+        private void upgradeToTypedValues(SQLiteDatabase db) {
+            rebuildSettingsTable(db,
+                    SettingsContract.TYPE,
+                    "CASE " + SettingsContract.TYPE +
+                        " WHEN " + SettingsContract.TYPE_BOOLEAN +
+                            " THEN CAST(" + SettingsContract.VALUE + " AS INTEGER)" +
+                        " WHEN " + SettingsContract.TYPE_INTEGER +
+                            " THEN CAST(" + SettingsContract.VALUE + " AS INTEGER)" +
+                        " WHEN " + SettingsContract.TYPE_LONG +
+                            " THEN CAST(" + SettingsContract.VALUE + " AS INTEGER)" +
+                        " WHEN " + SettingsContract.TYPE_FLOAT +
+                            " THEN CAST(" + SettingsContract.VALUE + " AS REAL)" +
+                        " ELSE " + SettingsContract.VALUE +
+                    " END");
+        }
+
+        /**
+         * Rebuilds the settings table with the current schema.
+         * Column affinities cannot be altered, so the rows are copied into a new table
+         * with the same row IDs and the same sequence of the row ID.
+         * @param db The {@link SQLiteDatabase} that holds the settings table.
+         * @param typeExpression The expression that computes the new type of a row.
+         * @param valueExpression The expression that computes the new value of a row.
+         */
+        private void rebuildSettingsTable(SQLiteDatabase db, String typeExpression,
+                String valueExpression) {
+            String newTable = Tables.SETTINGS + "_new";
+            db.execSQL("DROP TABLE IF EXISTS " + newTable);
+            createSettingsTable(db, newTable);
+            db.execSQL("INSERT INTO " + newTable +
+                    " (" + SettingsContract._ID + "," + SettingsContract.KEY + "," +
+                    SettingsContract.TYPE + "," + SettingsContract.VALUE + ")" +
+                    " SELECT " + SettingsContract._ID + "," + SettingsContract.KEY + "," +
+                    typeExpression + "," + valueExpression +
+                    " FROM " + Tables.SETTINGS);
+            // Row IDs of deleted rows must not be reused, since the change log refers to them.
+            // The sequence of the old table is never less than its row IDs, and is copied
+            // even if the new table has no rows and therefore no sequence of its own.
+            db.execSQL("DELETE FROM sqlite_sequence WHERE name='" + newTable + "'");
+            db.execSQL("INSERT INTO sqlite_sequence (name,seq)" +
+                    " SELECT '" + newTable + "',seq FROM sqlite_sequence" +
+                    " WHERE name='" + Tables.SETTINGS + "'");
+            db.execSQL("DROP TABLE " + Tables.SETTINGS);
+            db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + Tables.SETTINGS);
+        }
+
+        /**
+         * Converts sets of strings stored with Java serialization into the format of
+         * {@link StringSetCodec}. This method does nothing once the conversion has completed.
+         * The decoded values do not change, so the conversion is neither logged as changes
+         * nor notified. A row written during the conversion is left as it is.
+         */
+        public void migrateValueFormatIfNeeded() {
+            SQLiteDatabase db = getWritableDatabase();
+            if (getProperty(db, PROPERTY_VALUE_FORMAT) >= VALUE_FORMAT_STRING_SET_CODEC) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                Cursor cursor = db.query(Tables.SETTINGS, SettingsMigrationQuery.COLUMNS,
+                        "typeof(" + SettingsContract.VALUE + ")='blob'",
+                        null, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        byte[] bytes = cursor.getBlob(SettingsMigrationQuery.VALUE);
+                        if (!StringSetCodec.isSerialized(bytes)) {
+                            continue;
+                        }
+
+                        Set<String> values = StringSetCodec.decode(bytes);
+                        if (values == null) {
+                            // The value is not a set of strings.
+                            continue;
+                        }
+
+                        db.execSQL("UPDATE " + Tables.SETTINGS +
+                                " SET " + SettingsContract.VALUE + "=?" +
+                                " WHERE " + SettingsContract._ID + "=?" +
+                                " AND " + SettingsContract.VALUE + "=?",
+                                new Object[] {
+                                    StringSetCodec.encode(values),
+                                    cursor.getLong(SettingsMigrationQuery._ID),
+                                    bytes
+                                });
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                setProperty(db, PROPERTY_VALUE_FORMAT, VALUE_FORMAT_STRING_SET_CODEC);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        /**
+         * Records the changes of the rows that match the selection in the change log
+         * with a single statement.
+         * This method should be called in a transaction. The selection is written into
+         * the statement as is, so it must not come from a caller of the provider.
+         * @param db The {@link SQLiteDatabase} that holds the change log.
+         * @param selection The selection for the settings table, or null for all rows.
+         * @param selectionArgs The arguments for the selection.
+         * @param sequence The sequence of the change.
+         * @param deleted true if the rows are being deleted.
+         */
+        public void logChanges(SQLiteDatabase db, String selection, String[] selectionArgs,
+                long sequence, boolean deleted) {
+            StringBuilder sql = new StringBuilder()
+                    .append("INSERT OR REPLACE INTO ").append(Tables.CHANGES)
+                    .append(" (").append(ChangesColumns.SETTING_ID).append(',')
+                    .append(ChangesColumns.SEQUENCE).append(',')
+                    .append(ChangesColumns.DELETED).append(')')
+                    .append(" SELECT ").append(SettingsContract._ID).append(',')
+                    .append(sequence).append(',')
+                    .append(deleted ? 1 : 0)
+                    .append(" FROM ").append(Tables.SETTINGS);
+            if (!TextUtils.isEmpty(selection)) {
+                sql.append(" WHERE ").append(selection);
+            }
+
+            if (selectionArgs == null) {
+                db.execSQL(sql.toString());
+            } else {
+                db.execSQL(sql.toString(), selectionArgs);
+            }
+        }
+
+        /**
+         * Returns the changes committed after the sequence.
+         * A deleted row has only the ID, the sequence and the deleted flag.
+         * @param db The {@link SQLiteDatabase} that holds the change log.
+         * @param sequence The sequence after which changes are returned.
+         * @return the {@link Cursor} of the changes ordered by the sequence.
+         */
+        public Cursor queryChanges(SQLiteDatabase db, long sequence) {
+            return db.rawQuery("SELECT " +
+                    "c." + ChangesColumns.SETTING_ID + " AS " + SettingsContract._ID + "," +
+                    "s." + SettingsContract.KEY + " AS " + SettingsContract.KEY + "," +
+                    "s." + SettingsContract.TYPE + " AS " + SettingsContract.TYPE + "," +
+                    "s." + SettingsContract.VALUE + " AS " + SettingsContract.VALUE + "," +
+                    "c." + ChangesColumns.SEQUENCE + " AS " + SettingsContract.SEQUENCE + "," +
+                    "c." + ChangesColumns.DELETED + " AS " + SettingsContract.DELETED +
+                    " FROM " + Tables.CHANGES + " c" +
+                    " LEFT JOIN " + Tables.SETTINGS + " s" +
+                    " ON s." + SettingsContract._ID + "=c." + ChangesColumns.SETTING_ID +
+                    " WHERE c." + ChangesColumns.SEQUENCE + ">?" +
+                    " ORDER BY c." + ChangesColumns.SEQUENCE,
+                    new String[] { String.valueOf(sequence) });
+        }
+
+        /**
+         * Returns the sequence up to which the change log has been compacted.
+         * Clients that have synchronized up to this sequence or later can catch up
+         * with the change log.
+         * @param db The {@link SQLiteDatabase} that holds the change log.
+         * @return the oldest sequence that clients can catch up from.
+         */
+        public long getOldestChangeSequence(SQLiteDatabase db) {
+            return getProperty(db, PROPERTY_OLDEST_CHANGE_SEQUENCE);
+        }
+
+        /**
+         * Compacts the change log periodically.
+         * Changes that are older than {@link #RETAINED_CHANGE_SEQUENCES} are removed,
+         * including tombstones of deleted rows.
+         * This method should be called in a transaction.
+         * @param db The {@link SQLiteDatabase} that holds the change log.
+         * @param sequence The sequence of the change being committed.
+         */
+        public void compactChangesIfNeeded(SQLiteDatabase db, long sequence) {
+            if (sequence % COMPACTION_INTERVAL != 0 || sequence <= RETAINED_CHANGE_SEQUENCES) {
+                return;
+            }
+
+            long oldestSequence = sequence - RETAINED_CHANGE_SEQUENCES;
+            db.delete(Tables.CHANGES, ChangesColumns.SEQUENCE + "<=?",
+                    new String[] { String.valueOf(oldestSequence) });
+            setProperty(db, PROPERTY_OLDEST_CHANGE_SEQUENCE, oldestSequence);
+        }
+
+        private long getProperty(SQLiteDatabase db, String key) {
+            return DatabaseUtils.longForQuery(db,
+                    "SELECT " + PropertiesColumns.PROPERTY_VALUE +
+                    " FROM " + Tables.PROPERTIES +
+                    " WHERE " + PropertiesColumns.PROPERTY_KEY + "=?",
+                    new String[] { key });
+        }
+
+        private void addProperty(SQLiteDatabase db, String key, long value) {
+            db.execSQL("INSERT OR REPLACE INTO " + Tables.PROPERTIES +
+                    " (" + PropertiesColumns.PROPERTY_KEY + ","
+                    + PropertiesColumns.PROPERTY_VALUE + ") VALUES (?, ?)",
+                    new Object[] { key, value });
+        }
+
+        private void setProperty(SQLiteDatabase db, String key, long value) {
+            db.execSQL("UPDATE " + Tables.PROPERTIES +
+                    " SET " + PropertiesColumns.PROPERTY_VALUE + "=?" +
+                    " WHERE " + PropertiesColumns.PROPERTY_KEY + "=?",
+                    new Object[] { value, key });
+        }
+
+        /**
+         * Returns the sequence of the last committed change.
+         * @param db The {@link SQLiteDatabase} to read the sequence from.
+         * @return the sequence of the last committed change.
+         */
+        public long getChangeSequence(SQLiteDatabase db) {
+            return getProperty(db, PROPERTY_CHANGE_SEQUENCE);
+        }
+
+        /**
+         * Returns the epoch of the database.
+         * @param db The {@link SQLiteDatabase} to read the epoch from.
+         * @return the epoch of the database.
+         * @see SettingsContract#KEY_EPOCH
+         */
+        public long getEpoch(SQLiteDatabase db) {
+            return getProperty(db, PROPERTY_EPOCH);
+        }
+
+        /**
+         * Stores the sequence of the last committed change.
+         * This method should be called in a transaction.
+         * @param db The {@link SQLiteDatabase} to store the sequence into.
+         * @param sequence The sequence of the change being committed.
+         */
+        public void setChangeSequence(SQLiteDatabase db, long sequence) {
+            setProperty(db, PROPERTY_CHANGE_SEQUENCE, sequence);
         }
 
         @Override
@@ -628,13 +1818,268 @@ public class SettingsProvider extends ContentProvider implements SQLiteTransacti
         }
     }
 
+    /**
+     * The cache of precompiled statements for the frequent writes addressed by a key or an ID.
+     * The statements are compiled once for the database and their bindings are cleared after
+     * each use. They are not synchronized, so they should be used only in a write transaction,
+     * which is held by one thread at a time.
+     */
+    private static final class SettingsStatements {
+
+        private final SQLiteDatabase mDb;
+
+        private SQLiteStatement mFindSettingId;
+        private SQLiteStatement mIsUnchanged;
+        private SQLiteStatement mInsert;
+        private SQLiteStatement mUpdate;
+        private SQLiteStatement mDeleteByKey;
+        private SQLiteStatement mLogChange;
+
+        public SettingsStatements(SQLiteDatabase db) {
+            mDb = db;
+        }
+
+        public SQLiteDatabase getDatabase() {
+            return mDb;
+        }
+
+        /**
+         * Returns true if the values can be bound to {@link #insert(ContentValues)} and
+         * {@link #update(long, ContentValues)}.
+         * @param values The values of a setting.
+         * @return true if the values have only a key, a type and a value.
+         */
+        public static boolean canBind(ContentValues values) {
+            if (values.getAsString(SettingsContract.KEY) == null
+                    || values.getAsInteger(SettingsContract.TYPE) == null) {
+                return false;
+            }
+
+            for (String column : values.keySet()) {
+                if (!SettingsContract.KEY.equals(column)
+                        && !SettingsContract.TYPE.equals(column)
+                        && !SettingsContract.VALUE.equals(column)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the ID of the row for the key.
+         * @param key The key of the setting.
+         * @return the ID of the row, or {@link SettingsProvider#INVALID_ID} if not found.
+         */
+        public long findSettingId(String key) {
+            if (mFindSettingId == null) {
+                mFindSettingId = mDb.compileStatement(
+                        "SELECT " + SettingsContract._ID +
+                        " FROM " + DatabaseHelper.Tables.SETTINGS +
+                        " WHERE " + SettingsContract.KEY + "=?");
+            }
+
+            SQLiteStatement statement = mFindSettingId;
+            try {
+                statement.bindString(1, key);
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return INVALID_ID;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        /**
+         * Returns true if the row already has the type and the value to write.
+         * Values are compared in their storage classes.
+         * @param settingId The ID of the row.
+         * @param values The values to write.
+         * @return true if writing the values would not change the row.
+         */
+        public boolean isUnchanged(long settingId, ContentValues values) {
+            Integer type = values.getAsInteger(SettingsContract.TYPE);
+            if (type == null) {
+                return false;
+            }
+
+            if (mIsUnchanged == null) {
+                mIsUnchanged = mDb.compileStatement(
+                        "SELECT COUNT(*) FROM " + DatabaseHelper.Tables.SETTINGS +
+                        " WHERE " + SettingsContract._ID + "=?" +
+                        " AND " + SettingsContract.TYPE + "=?" +
+                        " AND " + SettingsContract.VALUE + " IS ?");
+            }
+
+            SQLiteStatement statement = mIsUnchanged;
+            try {
+                statement.bindLong(1, settingId);
+                statement.bindLong(2, type);
+                DatabaseUtils.bindObjectToProgram(statement, 3,
+                        values.get(SettingsContract.VALUE));
+                return statement.simpleQueryForLong() > 0;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        /**
+         * Inserts a setting.
+         * @param values The values that satisfy {@link #canBind(ContentValues)}.
+         * @return the ID of the inserted row, or {@link SettingsProvider#INVALID_ID} if
+         *         the key already exists.
+         */
+        public long insert(ContentValues values) {
+            if (mInsert == null) {
+                mInsert = mDb.compileStatement(
+                        "INSERT INTO " + DatabaseHelper.Tables.SETTINGS +
+                        " (" + SettingsContract.KEY + "," + SettingsContract.TYPE + "," +
+                        SettingsContract.VALUE + ") VALUES (?, ?, ?)");
+            }
+
+            SQLiteStatement statement = mInsert;
+            try {
+                bindSetting(statement, 1, values);
+                return statement.executeInsert();
+            } catch (SQLiteConstraintException e) {
+                return INVALID_ID;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        /**
+         * Updates a setting.
+         * @param settingId The ID of the row.
+         * @param values The values that satisfy {@link #canBind(ContentValues)}.
+         * @return the number of updated rows.
+         */
+        public int update(long settingId, ContentValues values) {
+            if (mUpdate == null) {
+                mUpdate = mDb.compileStatement(
+                        "UPDATE " + DatabaseHelper.Tables.SETTINGS +
+                        " SET " + SettingsContract.KEY + "=?," + SettingsContract.TYPE + "=?," +
+                        SettingsContract.VALUE + "=?" +
+                        " WHERE " + SettingsContract._ID + "=?");
+            }
+
+            SQLiteStatement statement = mUpdate;
+            try {
+                bindSetting(statement, 1, values);
+                statement.bindLong(4, settingId);
+                return statement.executeUpdateDelete();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        /**
+         * Deletes the setting for the key.
+         * @param key The key of the setting.
+         * @return the number of deleted rows.
+         */
+        public int deleteByKey(String key) {
+            if (mDeleteByKey == null) {
+                mDeleteByKey = mDb.compileStatement(
+                        "DELETE FROM " + DatabaseHelper.Tables.SETTINGS +
+                        " WHERE " + SettingsContract.KEY + "=?");
+            }
+
+            SQLiteStatement statement = mDeleteByKey;
+            try {
+                statement.bindString(1, key);
+                return statement.executeUpdateDelete();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        /**
+         * Records the change of a row in the change log.
+         * @param settingId The ID of the changed row.
+         * @param sequence The sequence of the change.
+         * @param deleted true if the row was deleted.
+         */
+        public void logChange(long settingId, long sequence, boolean deleted) {
+            if (mLogChange == null) {
+                mLogChange = mDb.compileStatement(
+                        "INSERT OR REPLACE INTO " + DatabaseHelper.Tables.CHANGES +
+                        " (" + DatabaseHelper.ChangesColumns.SETTING_ID + "," +
+                        DatabaseHelper.ChangesColumns.SEQUENCE + "," +
+                        DatabaseHelper.ChangesColumns.DELETED + ") VALUES (?, ?, ?)");
+            }
+
+            SQLiteStatement statement = mLogChange;
+            try {
+                statement.bindLong(1, settingId);
+                statement.bindLong(2, sequence);
+                statement.bindLong(3, deleted ? 1 : 0);
+                statement.executeInsert();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        private static void bindSetting(SQLiteStatement statement, int index,
+                ContentValues values) {
+            statement.bindString(index, values.getAsString(SettingsContract.KEY));
+            statement.bindLong(index + 1, values.getAsInteger(SettingsContract.TYPE));
+            DatabaseUtils.bindObjectToProgram(statement, index + 2,
+                    values.get(SettingsContract.VALUE));
+        }
+
+        /**
+         * Releases the compiled statements.
+         */
+        public void close() {
+            closeStatement(mFindSettingId);
+            closeStatement(mIsUnchanged);
+            closeStatement(mInsert);
+            closeStatement(mUpdate);
+            closeStatement(mDeleteByKey);
+            closeStatement(mLogChange);
+        }
+
+        private static void closeStatement(SQLiteStatement statement) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+    }
+
     @Override
     public void onBegin() {}
 
+    /**
+     * Stores the change sequence of the transaction before the transaction is committed.
+     * This method is also called when the transaction is yielded, so that every committed
+     * part of a batch has its own sequence.
+     */
     @Override
-    public void onCommit() {}
+    public void onCommit() {
+        Transaction transaction = mTransactionHolder.get();
+        if (transaction == null) {
+            return;
+        }
+
+        SQLiteDatabase db = transaction.getDbForTag(SETTINGS_DATABASE_TAG);
+        if (transaction.hasChangeSequence()) {
+            long sequence = transaction.getChangeSequence();
+            mDatabaseHelper.setChangeSequence(db, sequence);
+            mDatabaseHelper.compactChangesIfNeeded(db, sequence);
+            transaction.commitChangeSequence();
+        }
+
+        transaction.clearPendingDirtyRows();
+    }
 
     @Override
-    public void onRollback() {}
+    public void onRollback() {
+        Transaction transaction = mTransactionHolder.get();
+        if (transaction != null) {
+            transaction.clearChangeSequence();
+            // The rolled back changes must not be notified.
+            transaction.discardPendingDirtyRows();
+        }
+    }
 
 }
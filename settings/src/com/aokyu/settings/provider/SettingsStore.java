@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2015 Yu AOKI
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package com.aokyu.settings.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The in-memory copy of the settings table.
+ * The copy is loaded once and is updated with the rows changed by each finished
+ * transaction, so reads of the settings can be served without the database.
+ * Readers should use the database until {@link #isLoaded()} returns true.
+ * All methods are thread-safe.
+ */
+/* package */ class SettingsStore {
+
+    private static final String[] COLUMNS = new String[] {
+        SettingsContract._ID,
+        SettingsContract.KEY,
+        SettingsContract.TYPE,
+        SettingsContract.VALUE
+    };
+
+    private static final int _ID = 0;
+    private static final int KEY = 1;
+    private static final int TYPE = 2;
+    private static final int VALUE = 3;
+
+    /**
+     * The maximum number of IDs in a selection.
+     * SQLite limits the number of host parameters in a statement to 999.
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * The rows ordered by the ID as the rows of the table are.
+     */
+    private final Map<Long, Object[]> mRowsById = new TreeMap<Long, Object[]>();
+    private final Map<String, Object[]> mRowsByKey = new HashMap<String, Object[]>();
+
+    /**
+     * The name of the settings table.
+     */
+    private final String mTable;
+
+    /**
+     * Serializes the reads from the database with the updates of this copy, so that
+     * a row read earlier never overwrites a row read later.
+     * Readers of this copy never take this lock.
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * Indicates whether all rows have been loaded.
+     */
+    private volatile boolean mLoaded;
+
+    /**
+     * Creates an empty copy of the settings table.
+     *
+     * @param table The name of the settings table.
+     */
+    public SettingsStore(String table) {
+        mTable = table;
+    }
+
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Loads all rows of the settings table.
+     * The rows changed by transactions that finish during the loading are read after
+     * the loading, so the loaded copy includes their changes.
+     *
+     * @param db The database that holds the settings table.
+     */
+    public void load(SQLiteDatabase db) {
+        synchronized (mWriteLock) {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            Cursor cursor = db.query(mTable, COLUMNS, null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    rows.add(readRow(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            synchronized (this) {
+                mRowsById.clear();
+                mRowsByKey.clear();
+                for (Object[] row : rows) {
+                    putRow(row);
+                }
+            }
+            mLoaded = true;
+        }
+    }
+
+    /**
+     * Returns true if the projection can be served by this store.
+     *
+     * @param projection The requested columns, or null for all columns.
+     * @return true if all columns in the projection are columns of the settings table.
+     */
+    public static boolean canProject(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns all settings.
+     *
+     * @param projection The requested columns, or null for all columns.
+     * @return the {@link Cursor} of the settings ordered by the ID.
+     */
+    public synchronized Cursor queryAll(String[] projection) {
+        return toCursor(projection, mRowsById.values());
+    }
+
+    /**
+     * Returns the settings for the IDs.
+     *
+     * @param projection The requested columns, or null for all columns.
+     * @param ids The IDs of the settings.
+     * @return the {@link Cursor} of the existing settings.
+     */
+    public synchronized Cursor queryByIds(String[] projection, Collection<Long> ids) {
+        List<Object[]> rows = new ArrayList<Object[]>(ids.size());
+        for (Long id : ids) {
+            Object[] row = mRowsById.get(id);
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        return toCursor(projection, rows);
+    }
+
+    /**
+     * Returns the setting for the key.
+     *
+     * @param projection The requested columns, or null for all columns.
+     * @param key The key of the setting.
+     * @return the {@link Cursor} that has the setting, or no rows if the key does not exist.
+     */
+    public synchronized Cursor queryByKey(String[] projection, String key) {
+        List<Object[]> rows = new ArrayList<Object[]>(1);
+        Object[] row = mRowsByKey.get(key);
+        if (row != null) {
+            rows.add(row);
+        }
+        return toCursor(projection, rows);
+    }
+
+    /**
+     * Re-reads the rows for the IDs from the database.
+     * This method should be called after the transaction that has changed the rows has
+     * finished, so that only committed rows are read. A row that no longer exists is
+     * removed. Nothing is read until all rows have been loaded.
+     *
+     * @param db The database that holds the settings table.
+     * @param ids The IDs of the changed rows.
+     */
+    public void reload(SQLiteDatabase db, Collection<Long> ids) {
+        synchronized (mWriteLock) {
+            if (mLoaded) {
+                reloadLocked(db, ids);
+            }
+        }
+    }
+
+    private void reloadLocked(SQLiteDatabase db, Collection<Long> ids) {
+        // The rows are read without the lock of readers, so that readers are not blocked
+        // by the database.
+        Map<Long, Object[]> rows = new HashMap<Long, Object[]>();
+        List<Long> chunk = new ArrayList<Long>(Math.min(ids.size(), MAX_IDS_PER_QUERY));
+        for (Long id : ids) {
+            chunk.add(id);
+            if (chunk.size() == MAX_IDS_PER_QUERY) {
+                readRows(db, chunk, rows);
+                chunk.clear();
+            }
+        }
+
+        if (!chunk.isEmpty()) {
+            readRows(db, chunk, rows);
+        }
+
+        synchronized (this) {
+            for (Long id : ids) {
+                Object[] row = rows.get(id);
+                if (row != null) {
+                    putRow(row);
+                } else {
+                    removeRow(id);
+                }
+            }
+        }
+    }
+
+    private void readRows(SQLiteDatabase db, List<Long> ids, Map<Long, Object[]> rows) {
+        int size = ids.size();
+        StringBuilder selection = new StringBuilder(SettingsContract._ID).append(" IN (");
+        String[] selectionArgs = new String[size];
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append('?');
+            selectionArgs[i] = String.valueOf(ids.get(i));
+        }
+        selection.append(')');
+
+        Cursor cursor = db.query(mTable, COLUMNS, selection.toString(), selectionArgs,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                Object[] row = readRow(cursor);
+                rows.put((Long) row[_ID], row);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Object[] readRow(Cursor cursor) {
+        Object[] row = new Object[COLUMNS.length];
+        row[_ID] = cursor.getLong(_ID);
+        row[KEY] = cursor.getString(KEY);
+        row[TYPE] = cursor.getInt(TYPE);
+        // The value column has no affinity, so the value is kept in its stored class.
+        switch (cursor.getType(VALUE)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                row[VALUE] = cursor.getLong(VALUE);
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                row[VALUE] = cursor.getDouble(VALUE);
+                break;
+            case Cursor.FIELD_TYPE_STRING:
+                row[VALUE] = cursor.getString(VALUE);
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                row[VALUE] = cursor.getBlob(VALUE);
+                break;
+            default:
+                row[VALUE] = null;
+                break;
+        }
+        return row;
+    }
+
+    private void putRow(Object[] row) {
+        Object[] oldRow = mRowsById.put((Long) row[_ID], row);
+        if (oldRow != null && mRowsByKey.get(oldRow[KEY]) == oldRow) {
+            mRowsByKey.remove(oldRow[KEY]);
+        }
+        mRowsByKey.put((String) row[KEY], row);
+    }
+
+    private void removeRow(Long id) {
+        Object[] oldRow = mRowsById.remove(id);
+        if (oldRow != null && mRowsByKey.get(oldRow[KEY]) == oldRow) {
+            mRowsByKey.remove(oldRow[KEY]);
+        }
+    }
+
+    private static Cursor toCursor(String[] projection, Collection<Object[]> rows) {
+        String[] columns = (projection != null) ? projection : COLUMNS;
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indices[i] = indexOf(columns[i]);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(columns, rows.size());
+        for (Object[] row : rows) {
+            Object[] values = new Object[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                values[i] = row[indices[i]];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
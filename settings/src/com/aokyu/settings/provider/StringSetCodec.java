@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2015 Yu AOKI
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package com.aokyu.settings.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The compact binary codec for sets of strings stored in the {@link SettingsContract#VALUE}
+ * column.
+ * <p>
+ * The encoded bytes have the following layout, and all numbers are big-endian.
+ * <pre>
+ * magic   : short 0x5353
+ * version : byte
+ * count   : int
+ * entries : count * (length(int) UTF-8 bytes), the length is -1 for null
+ * </pre>
+ * Sets that were stored with Java serialization before this codec was introduced can
+ * still be decoded.
+ */
+public final class StringSetCodec {
+
+    private static final short MAGIC = 0x5353;
+
+    private static final byte FORMAT_VERSION = 1;
+
+    /**
+     * The size of the magic number, the version and the count.
+     */
+    private static final int HEADER_SIZE = 7;
+
+    /**
+     * The first two bytes of a Java serialization stream.
+     */
+    private static final short STREAM_MAGIC = (short) 0xACED;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private StringSetCodec() {}
+
+    /**
+     * Returns true if the value can be encoded by this codec.
+     *
+     * @param value The value to encode.
+     * @return true if the value is a set that holds only strings.
+     */
+    public static boolean canEncode(Object value) {
+        if (!(value instanceof Set<?>)) {
+            return false;
+        }
+
+        for (Object element : (Set<?>) value) {
+            if (element != null && !(element instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the bytes were encoded by this codec.
+     *
+     * @param bytes The bytes stored in the database.
+     * @return true if the bytes start with the header of this codec.
+     */
+    public static boolean isEncoded(byte[] bytes) {
+        return bytes != null && bytes.length >= HEADER_SIZE
+                && ByteBuffer.wrap(bytes).getShort() == MAGIC;
+    }
+
+    /**
+     * Returns true if the bytes were written with Java serialization.
+     *
+     * @param bytes The bytes stored in the database.
+     * @return true if the bytes start with the magic number of a serialization stream.
+     */
+    public static boolean isSerialized(byte[] bytes) {
+        return bytes != null && bytes.length >= 2
+                && ByteBuffer.wrap(bytes).getShort() == STREAM_MAGIC;
+    }
+
+    /**
+     * Encodes the strings.
+     *
+     * @param values The strings to encode.
+     * @return the encoded bytes.
+     */
+    public static byte[] encode(Collection<String> values) {
+        int count = values.size();
+        byte[][] encoded = new byte[count][];
+        int size = HEADER_SIZE;
+        int i = 0;
+        for (String value : values) {
+            if (value != null) {
+                encoded[i] = value.getBytes(UTF_8);
+                size += encoded[i].length;
+            }
+            size += 4;
+            i++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort(MAGIC);
+        buffer.put(FORMAT_VERSION);
+        buffer.putInt(count);
+        for (byte[] bytes : encoded) {
+            if (bytes == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes the strings.
+     * Bytes written with Java serialization are also accepted if they hold a set of strings.
+     *
+     * @param bytes The bytes stored in the database.
+     * @return the decoded set, or null if the bytes do not hold a set of strings.
+     */
+    public static Set<String> decode(byte[] bytes) {
+        if (isEncoded(bytes)) {
+            return decodeCompact(bytes);
+        } else if (isSerialized(bytes)) {
+            return decodeSerialized(bytes);
+        } else {
+            return null;
+        }
+    }
+
+    private static Set<String> decodeCompact(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            buffer.getShort();
+            if (buffer.get() != FORMAT_VERSION) {
+                return null;
+            }
+
+            int count = buffer.getInt();
+            // Each entry has at least its length, so a corrupted count is rejected before
+            // the set is allocated for it.
+            if (count < 0 || count > buffer.remaining() / 4) {
+                return null;
+            }
+
+            Set<String> values = new HashSet<String>(Math.max(count * 4 / 3 + 1, 16));
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                if (length < 0) {
+                    values.add(null);
+                } else {
+                    values.add(new String(bytes, buffer.position(), length, UTF_8));
+                    buffer.position(buffer.position() + length);
+                }
+            }
+            return values;
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // The length of a string exceeds the bytes.
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static Set<String> decodeSerialized(byte[] bytes) {
+        ObjectInputStream input = null;
+        try {
+            input = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            Object object = input.readObject();
+            if (!canEncode(object)) {
+                return null;
+            }
+
+            Set<String> values = new HashSet<String>();
+            for (Object element : (Set<?>) object) {
+                values.add((String) element);
+            }
+            return values;
+        } catch (IOException e) {
+            return null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
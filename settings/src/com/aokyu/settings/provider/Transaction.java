@@ -9,14 +9,11 @@ package com.aokyu.settings.provider;
 
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteTransactionListener;
-import android.net.Uri;
-
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * A transaction for a database.
@@ -41,11 +38,52 @@ import java.util.Set;
     private boolean mYieldFailed;
 
     /**
-     * {@link Uri}s that have changed in this transaction.
-     * The hash code is calculated from a string representation of each {@link Uri}.
-     * @see Uri#hashCode()
+     * The IDs of the rows that have changed in this transaction, in the order of the changes.
+     * A row appears more than once if it has changed more than once.
+     */
+    private long[] mDirtyIds = new long[INITIAL_DIRTY_CAPACITY];
+
+    /**
+     * The keys of the rows in {@link #mDirtyIds}.
+     * This array is allocated only when a change has a key.
+     */
+    private String[] mDirtyKeys;
+
+    /**
+     * The payloads for the notifications of the changes in {@link #mDirtyIds}.
+     * This array is allocated only when a change has a payload.
+     */
+    private Object[] mDirtyPayloads;
+
+    /**
+     * The number of changes in {@link #mDirtyIds}.
+     */
+    private int mDirtyCount;
+
+    /**
+     * The index of the first change in {@link #mDirtyIds} that has been neither committed
+     * nor rolled back.
+     */
+    private int mPendingDirtyIndex;
+
+    private static final int INITIAL_DIRTY_CAPACITY = 16;
+
+    /**
+     * The change sequence allocated for the current database transaction.
+     * @see #NO_CHANGE_SEQUENCE
      */
-    private Set<Uri> mDirtyUris = new HashSet<Uri>();
+    private long mChangeSequence = NO_CHANGE_SEQUENCE;
+
+    /**
+     * The last change sequence committed by this transaction.
+     * @see #NO_CHANGE_SEQUENCE
+     */
+    private long mCommittedSequence = NO_CHANGE_SEQUENCE;
+
+    /**
+     * Indicates that no change sequence has been allocated.
+     */
+    private static final long NO_CHANGE_SEQUENCE = -1;
 
     /**
      * Create a transaction.
@@ -71,17 +109,144 @@ import java.util.Set;
         mDirty = true;
     }
 
-    public void markDirty(Uri uri) {
-        if (uri == null) {
-            return;
+    public void markDirty(long id) {
+        markDirty(id, null, null);
+    }
+
+    /**
+     * Marks the row as changed in this transaction.
+     * No {@link android.net.Uri} is built until the change is notified.
+     *
+     * @param id The ID of the changed row.
+     * @param key The key of the changed row, or null if unknown.
+     * @param payload The object that describes the change for the notification,
+     *        or null if the notification carries only the row.
+     */
+    public void markDirty(long id, String key, Object payload) {
+        if (mDirtyCount == mDirtyIds.length) {
+            int capacity = mDirtyCount * 2;
+            mDirtyIds = Arrays.copyOf(mDirtyIds, capacity);
+            if (mDirtyKeys != null) {
+                mDirtyKeys = Arrays.copyOf(mDirtyKeys, capacity);
+            }
+            if (mDirtyPayloads != null) {
+                mDirtyPayloads = Arrays.copyOf(mDirtyPayloads, capacity);
+            }
+        }
+
+        if (key != null && mDirtyKeys == null) {
+            mDirtyKeys = new String[mDirtyIds.length];
+        }
+        if (payload != null && mDirtyPayloads == null) {
+            mDirtyPayloads = new Object[mDirtyIds.length];
         }
 
-        mDirtyUris.add(uri);
+        mDirtyIds[mDirtyCount] = id;
+        if (mDirtyKeys != null) {
+            mDirtyKeys[mDirtyCount] = key;
+        }
+        if (mDirtyPayloads != null) {
+            mDirtyPayloads[mDirtyCount] = payload;
+        }
+        mDirtyCount++;
         markDirty();
     }
 
-    public Set<Uri> getDirtyUris() {
-        return mDirtyUris;
+    /**
+     * Returns the number of changes marked in this transaction.
+     * A row that has changed more than once is counted for each change.
+     * @return the number of changes.
+     */
+    public int getDirtyCount() {
+        return mDirtyCount;
+    }
+
+    public long getDirtyId(int index) {
+        return mDirtyIds[index];
+    }
+
+    public String getDirtyKey(int index) {
+        return (mDirtyKeys != null) ? mDirtyKeys[index] : null;
+    }
+
+    public Object getDirtyPayload(int index) {
+        return (mDirtyPayloads != null) ? mDirtyPayloads[index] : null;
+    }
+
+    /**
+     * Marks the pending changes as committed.
+     * The changes are still notified when this transaction finishes.
+     */
+    public void clearPendingDirtyRows() {
+        mPendingDirtyIndex = mDirtyCount;
+    }
+
+    /**
+     * Discards the pending changes, since the database has rolled them back.
+     * The discarded changes are not notified.
+     */
+    public void discardPendingDirtyRows() {
+        int from = mPendingDirtyIndex;
+        if (mDirtyKeys != null) {
+            Arrays.fill(mDirtyKeys, from, mDirtyCount, null);
+        }
+        if (mDirtyPayloads != null) {
+            Arrays.fill(mDirtyPayloads, from, mDirtyCount, null);
+        }
+        mDirtyCount = from;
+        mDirty = mDirtyCount > 0;
+    }
+
+    /**
+     * Returns the number of distinct rows that have changed in this transaction.
+     * @return the number of changed rows.
+     */
+    public int getDirtyRowCount() {
+        if (mDirtyCount < 2) {
+            return mDirtyCount;
+        }
+
+        long[] ids = Arrays.copyOf(mDirtyIds, mDirtyCount);
+        Arrays.sort(ids);
+        int count = 1;
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i] != ids[i - 1]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean hasChangeSequence() {
+        return mChangeSequence != NO_CHANGE_SEQUENCE;
+    }
+
+    public long getChangeSequence() {
+        return mChangeSequence;
+    }
+
+    public void setChangeSequence(long sequence) {
+        mChangeSequence = sequence;
+    }
+
+    public void clearChangeSequence() {
+        mChangeSequence = NO_CHANGE_SEQUENCE;
+    }
+
+    /**
+     * Marks the change sequence of the current database transaction as committed.
+     */
+    public void commitChangeSequence() {
+        mCommittedSequence = mChangeSequence;
+        mChangeSequence = NO_CHANGE_SEQUENCE;
+    }
+
+    /**
+     * Returns the last change sequence committed by this transaction.
+     * @return the sequence, or a negative value if no change has been committed.
+     */
+    public long getCommittedSequence() {
+        return mCommittedSequence;
     }
 
     public void markYieldFailed() {
@@ -134,11 +299,23 @@ import java.util.Set;
             }
             mDatabasesForTransaction.clear();
             mDatabaseMap.clear();
-            mDirty = false;
-            if (mDirtyUris != null) {
-                mDirtyUris.clear();
-            }
         }
     }
 
+    /**
+     * Clears the changes of this transaction after they have been notified.
+     */
+    public void clearDirtyRows() {
+        mDirty = false;
+        if (mDirtyKeys != null) {
+            Arrays.fill(mDirtyKeys, 0, mDirtyCount, null);
+        }
+        if (mDirtyPayloads != null) {
+            // Payloads should not be retained after the transaction.
+            Arrays.fill(mDirtyPayloads, 0, mDirtyCount, null);
+        }
+        mDirtyCount = 0;
+        mPendingDirtyIndex = 0;
+    }
+
 }
@@ -14,9 +14,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
@@ -29,7 +29,7 @@ public class SerialExecutor {
 
     private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
 
-    private ExecutorService mExecutor;
+    private ScheduledExecutorService mExecutor;
     private TaskPool mPool;
 
     private String mTaskName;
@@ -47,7 +47,7 @@ public class SerialExecutor {
             threadFactory = new NamedThreadFactory(mTaskName);
         }
 
-        mExecutor = Executors.newSingleThreadExecutor(threadFactory);
+        mExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
         mPool = new TaskPool();
     }
 
@@ -84,6 +84,23 @@ public class SerialExecutor {
         return taskId;
     }
 
+    /**
+     * Executes the task after the delay.
+     * Tasks are still executed one by one in the order of their scheduled time.
+     *
+     * @param task The task to execute.
+     * @param delayMillis The delay in milliseconds.
+     * @return the ID of the task.
+     */
+    public String execute(AbstractTask task, long delayMillis) {
+        UUID uuid = UUID.randomUUID();
+        String taskId = uuid.toString();
+        task.setId(taskId);
+        task.setListener(mPool);
+        mPool.addTask(taskId, mExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS));
+        return taskId;
+    }
+
     /**
      * The task pool to manage the current tasks.
      */
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015 Yu AOKI
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package com.aokyu.settings;
+
+import com.aokyu.settings.provider.SettingsContract;
+import com.aokyu.settings.provider.SettingsProvider;
+
+import android.content.ContentResolver;
+import android.test.ProviderTestCase2;
+
+import java.util.Map;
+
+/**
+ * Tests {@link SettingsCache} against the settings provider.
+ * The commits of the editor are played by writing to the provider directly and by
+ * calling the completion methods of the cache.
+ */
+public class SettingsCacheTest extends ProviderTestCase2<SettingsProvider> {
+
+    /**
+     * The number of settings that keeps the initial loading busy for a while.
+     */
+    private static final int MANY_SETTINGS = 500;
+
+    private ContentResolver mContentResolver;
+    private SettingsCache mCache;
+
+    public SettingsCacheTest() {
+        super(SettingsProvider.class, SettingsContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContentResolver = getMockContentResolver();
+        // The provider keeps its database across test cases.
+        mContentResolver.delete(SettingsContract.CONTENT_URI, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.destroy();
+            mCache = null;
+        }
+        super.tearDown();
+    }
+
+    public void testPendingClearHidesStoredSettings() {
+        insert(new Setting("a", 1));
+        mCache = new SettingsCache(getMockContext(), true);
+
+        // The row still exists, but must not be loaded on demand.
+        long ticket = mCache.clear();
+        assertNull(mCache.get("a"));
+        assertFalse(mCache.contains("a"));
+
+        // A setting put after the clear is not hidden.
+        mCache.put(new Setting("b", 2));
+        assertEquals(2, mCache.get("b").getInt());
+        Map<String, ?> all = mCache.getAllAsMap();
+        assertEquals(1, all.size());
+        assertEquals(2, all.get("b"));
+
+        mContentResolver.delete(SettingsContract.CONTENT_URI, null, null);
+        mCache.onClearCompleted(ticket, true);
+        assertNull(mCache.get("a"));
+        assertFalse(mCache.getAllAsMap().containsKey("a"));
+    }
+
+    public void testFailedClearShowsStoredSettings() {
+        insert(new Setting("a", 1));
+        mCache = new SettingsCache(getMockContext(), true);
+        assertEquals(1, mCache.getAllAsMap().size());
+
+        long ticket = mCache.clear();
+        assertNull(mCache.get("a"));
+
+        mCache.onClearCompleted(ticket, false);
+        assertEquals(1, mCache.get("a").getInt());
+    }
+
+    public void testClearDuringLoadingIsNotUndone() {
+        for (int i = 0; i < MANY_SETTINGS; i++) {
+            insert(new Setting("key" + i, i));
+        }
+
+        // The clear completes while the loading is likely to be running. The loading
+        // must not publish the records read before the clear in either case.
+        mCache = new SettingsCache(getMockContext(), true);
+        long ticket = mCache.clear();
+        mContentResolver.delete(SettingsContract.CONTENT_URI, null, null);
+        mCache.onClearCompleted(ticket, true);
+
+        assertTrue(mCache.getAllAsMap().isEmpty());
+        assertNull(mCache.get("key0"));
+        assertFalse(mCache.contains("key" + (MANY_SETTINGS - 1)));
+    }
+
+    public void testLaterClearCompletesEarlierClears() {
+        insert(new Setting("a", 1));
+        mCache = new SettingsCache(getMockContext(), false);
+        assertEquals(1, mCache.getAllAsMap().size());
+
+        // The clears of merged commits are completed by the last one.
+        mCache.clear();
+        long ticket = mCache.clear();
+        mCache.onClearCompleted(ticket, false);
+        assertEquals(1, mCache.get("a").getInt());
+    }
+
+    private void insert(Setting setting) {
+        mContentResolver.insert(SettingsContract.CONTENT_URI, setting.toContentValues());
+    }
+}
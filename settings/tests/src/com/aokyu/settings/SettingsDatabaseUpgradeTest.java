@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2015 Yu AOKI
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package com.aokyu.settings;
+
+import com.aokyu.settings.provider.SettingsContract;
+import com.aokyu.settings.provider.SettingsDatabases;
+import com.aokyu.settings.provider.StringSetCodec;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests the upgrade of settings databases created by each older version of the schema.
+ * The upgrade rewrites the settings table and cannot be undone, so every type of value
+ * is read back after the upgrade, together with the state of the change log.
+ */
+public class SettingsDatabaseUpgradeTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "settings_upgrade_test.db";
+
+    /**
+     * The last version whose settings table is rebuilt by the upgrade.
+     */
+    private static final int LAST_REBUILT_VERSION = 5;
+
+    /**
+     * The keys of the properties table, which are stored in the database.
+     */
+    private static final String PROPERTY_CHANGE_SEQUENCE = "change_sequence";
+    private static final String PROPERTY_OLDEST_CHANGE_SEQUENCE = "oldest_change_sequence";
+    private static final String PROPERTY_VALUE_FORMAT = "value_format";
+
+    /**
+     * The value format of sets of strings encoded by {@link StringSetCodec}.
+     */
+    private static final int VALUE_FORMAT_STRING_SET_CODEC = 1;
+
+    private static final long CHANGE_SEQUENCE = 42;
+    private static final long OLDEST_CHANGE_SEQUENCE = 40;
+
+    /**
+     * The integer representation of <code>true</code> in the older versions.
+     */
+    private static final int TRUE = 1;
+
+    private static final String KEY_BOOLEAN = "boolean";
+    private static final String KEY_FLOAT = "float";
+    private static final String KEY_INTEGER = "integer";
+    private static final String KEY_LONG = "long";
+    private static final String KEY_STRING = "string";
+    private static final String KEY_STRING_SET = "string_set";
+    private static final String KEY_DELETED = "deleted";
+
+    private static final float FLOAT_VALUE = 1.5f;
+    private static final int INTEGER_VALUE = Integer.MIN_VALUE;
+    private static final long LONG_VALUE = Long.MAX_VALUE;
+    private static final String STRING_VALUE = "123";
+
+    private SQLiteOpenHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDatabase();
+        super.tearDown();
+    }
+
+    private void deleteDatabase() {
+        if (mHelper != null) {
+            mHelper.close();
+            mHelper = null;
+        }
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    public void testUpgradeFromVersion1() throws IOException {
+        assertUpgradeKeepsSettings(1);
+    }
+
+    public void testUpgradeFromVersion2() throws IOException {
+        assertUpgradeKeepsSettings(2);
+    }
+
+    public void testUpgradeFromVersion3() throws IOException {
+        assertUpgradeKeepsSettings(3);
+    }
+
+    public void testUpgradeFromVersion4() throws IOException {
+        assertUpgradeKeepsSettings(4);
+    }
+
+    public void testUpgradeFromVersion5() throws IOException {
+        assertUpgradeKeepsSettings(5);
+    }
+
+    public void testUpgradeFromVersion6() throws IOException {
+        assertUpgradeKeepsSettings(6);
+    }
+
+    public void testUpgradeKeepsSequenceOfEmptyTable() {
+        for (int version = 1; version <= LAST_REBUILT_VERSION; version++) {
+            SQLiteDatabase db = createDatabase(version);
+            try {
+                long deletedId = insertOldSetting(db, version, KEY_DELETED,
+                        Setting.TYPE_STRING, "");
+                db.delete(SettingsDatabases.TABLE_SETTINGS, SettingsContract._ID + "=?",
+                        new String[] {String.valueOf(deletedId)});
+            } finally {
+                db.close();
+            }
+
+            db = openUpgradedDatabase();
+            Cursor cursor = db.query(SettingsDatabases.TABLE_SETTINGS, null, null, null,
+                    null, null, null);
+            try {
+                assertEquals(0, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+
+            // The ID of the deleted row must not be reused.
+            assertEquals(2, SettingsDatabases.getNextSettingId(db));
+            assertEquals(2, insertSetting(db, new Setting(KEY_DELETED, STRING_VALUE)));
+            deleteDatabase();
+        }
+    }
+
+    public void testUpgradeOfTableWithoutRows() {
+        for (int version = 1; version <= LAST_REBUILT_VERSION; version++) {
+            SQLiteDatabase db = createDatabase(version);
+            db.close();
+
+            db = openUpgradedDatabase();
+            assertEquals(1, SettingsDatabases.getNextSettingId(db));
+            assertEquals(1, insertSetting(db, new Setting(KEY_STRING, STRING_VALUE)));
+            deleteDatabase();
+        }
+    }
+
+    /**
+     * Upgrades a database of the version that holds every type of value, and verifies
+     * that the settings and the state of the change log are carried over.
+     */
+    private void assertUpgradeKeepsSettings(int version) throws IOException {
+        Set<String> stringSet = new HashSet<String>();
+        stringSet.add("a");
+        stringSet.add("b");
+        stringSet.add("");
+
+        SQLiteDatabase db = createDatabase(version);
+        try {
+            insertOldSetting(db, version, KEY_BOOLEAN, Setting.TYPE_BOOLEAN, TRUE);
+            insertOldSetting(db, version, KEY_FLOAT, Setting.TYPE_FLOAT, FLOAT_VALUE);
+            insertOldSetting(db, version, KEY_INTEGER, Setting.TYPE_INTEGER, INTEGER_VALUE);
+            insertOldSetting(db, version, KEY_LONG, Setting.TYPE_LONG, LONG_VALUE);
+            long stringId = insertOldSetting(db, version, KEY_STRING, Setting.TYPE_STRING,
+                    STRING_VALUE);
+            // The sets were serialized until the compact format was introduced in version 4.
+            insertOldSetting(db, version, KEY_STRING_SET, Setting.TYPE_OBJECT,
+                    (version < 4) ? serialize(stringSet) : StringSetCodec.encode(stringSet));
+            long deletedId = insertOldSetting(db, version, KEY_DELETED, Setting.TYPE_STRING,
+                    "");
+            db.delete(SettingsDatabases.TABLE_SETTINGS, SettingsContract._ID + "=?",
+                    new String[] {String.valueOf(deletedId)});
+
+            if (version >= 2) {
+                setProperty(db, PROPERTY_CHANGE_SEQUENCE, CHANGE_SEQUENCE);
+            }
+            if (version >= 3) {
+                setProperty(db, PROPERTY_OLDEST_CHANGE_SEQUENCE, OLDEST_CHANGE_SEQUENCE);
+                db.execSQL("INSERT INTO " + SettingsDatabases.TABLE_CHANGES +
+                        " (setting_id," + SettingsContract.SEQUENCE + ")" +
+                        " VALUES (?,?)", new Object[] {stringId, CHANGE_SEQUENCE});
+            }
+        } finally {
+            db.close();
+        }
+
+        db = openUpgradedDatabase();
+        Map<String, Setting> settings = new HashMap<String, Setting>();
+        Map<String, String> storageClasses = new HashMap<String, String>();
+        Cursor cursor = db.rawQuery("SELECT " +
+                SettingsContract._ID + "," + SettingsContract.KEY + "," +
+                SettingsContract.TYPE + "," + SettingsContract.VALUE + "," +
+                "typeof(" + SettingsContract.VALUE + ") AS storage_class" +
+                " FROM " + SettingsDatabases.TABLE_SETTINGS, null);
+        try {
+            Setting.CursorDecoder decoder = new Setting.CursorDecoder(cursor);
+            int storageClassIndex = cursor.getColumnIndexOrThrow("storage_class");
+            while (cursor.moveToNext()) {
+                Setting setting = decoder.decode();
+                settings.put(setting.getKey(), setting);
+                storageClasses.put(setting.getKey(), cursor.getString(storageClassIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals(6, settings.size());
+
+        Setting setting = settings.get(KEY_BOOLEAN);
+        assertEquals(Setting.TYPE_BOOLEAN, setting.getType());
+        assertEquals("integer", storageClasses.get(KEY_BOOLEAN));
+        assertTrue(setting.getBoolean());
+
+        setting = settings.get(KEY_FLOAT);
+        assertEquals(Setting.TYPE_FLOAT, setting.getType());
+        assertEquals("real", storageClasses.get(KEY_FLOAT));
+        assertEquals(FLOAT_VALUE, setting.getFloat(), 0f);
+
+        setting = settings.get(KEY_INTEGER);
+        assertEquals(Setting.TYPE_INTEGER, setting.getType());
+        assertEquals("integer", storageClasses.get(KEY_INTEGER));
+        assertEquals(INTEGER_VALUE, setting.getInt());
+
+        setting = settings.get(KEY_LONG);
+        assertEquals(Setting.TYPE_LONG, setting.getType());
+        assertEquals("integer", storageClasses.get(KEY_LONG));
+        assertEquals(LONG_VALUE, setting.getLong());
+
+        // A string that looks like a number must not be converted.
+        setting = settings.get(KEY_STRING);
+        assertEquals(Setting.TYPE_STRING, setting.getType());
+        assertEquals("text", storageClasses.get(KEY_STRING));
+        assertEquals(STRING_VALUE, setting.getValue());
+
+        setting = settings.get(KEY_STRING_SET);
+        assertEquals(Setting.TYPE_OBJECT, setting.getType());
+        assertEquals("blob", storageClasses.get(KEY_STRING_SET));
+        assertEquals(stringSet, setting.getValue());
+        assertTrue(StringSetCodec.isEncoded(getValueBytes(db, KEY_STRING_SET)));
+
+        // The ID of the deleted row must not be reused.
+        assertEquals(8, SettingsDatabases.getNextSettingId(db));
+        assertEquals(8, insertSetting(db, new Setting(KEY_DELETED, STRING_VALUE)));
+
+        // The change log starts at the current sequence if the version had no log.
+        long sequence = (version >= 2) ? CHANGE_SEQUENCE : 0;
+        assertEquals(sequence, SettingsDatabases.getChangeSequence(mHelper));
+        if (version >= 3) {
+            assertEquals(OLDEST_CHANGE_SEQUENCE,
+                    SettingsDatabases.getOldestChangeSequence(mHelper));
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, SettingsDatabases.TABLE_CHANGES));
+        } else {
+            assertEquals(sequence, SettingsDatabases.getOldestChangeSequence(mHelper));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, SettingsDatabases.TABLE_CHANGES));
+        }
+        assertFalse(SettingsDatabases.getEpoch(mHelper) == SettingsLoader.NO_EPOCH);
+    }
+
+    /**
+     * Creates the database with the schema of the version.
+     * Up to version 4, the type is the class name and the value column has the text
+     * affinity. Version 5 stores type codes, and version 6 removes the affinity.
+     */
+    private SQLiteDatabase createDatabase(int version) {
+        SQLiteDatabase db = getContext().openOrCreateDatabase(DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        db.execSQL("CREATE TABLE " + SettingsDatabases.TABLE_SETTINGS +
+                " (" +
+                    SettingsContract._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    SettingsContract.KEY + " TEXT NOT NULL," +
+                    SettingsContract.TYPE + ((version < 5) ? " TEXT" : " INTEGER") +
+                        " NOT NULL," +
+                    SettingsContract.VALUE + ((version < 6) ? " TEXT," : ",") +
+                    "UNIQUE (" + SettingsContract.KEY + ")" +
+                ");");
+
+        if (version >= 2) {
+            db.execSQL("CREATE TABLE " + SettingsDatabases.TABLE_PROPERTIES +
+                    " (property_key TEXT PRIMARY KEY, property_value INTEGER NOT NULL);");
+            addProperty(db, PROPERTY_CHANGE_SEQUENCE, 0);
+        }
+
+        if (version >= 3) {
+            db.execSQL("CREATE TABLE " + SettingsDatabases.TABLE_CHANGES +
+                    " (" +
+                        "setting_id INTEGER PRIMARY KEY," +
+                        SettingsContract.SEQUENCE + " INTEGER NOT NULL," +
+                        SettingsContract.DELETED + " INTEGER NOT NULL DEFAULT 0" +
+                    ");");
+            addProperty(db, PROPERTY_OLDEST_CHANGE_SEQUENCE, 0);
+        }
+
+        if (version >= 4) {
+            // A database created by version 4 or later has no serialized sets to migrate.
+            addProperty(db, PROPERTY_VALUE_FORMAT, VALUE_FORMAT_STRING_SET_CODEC);
+        }
+
+        db.setVersion(version);
+        return db;
+    }
+
+    private SQLiteDatabase openUpgradedDatabase() {
+        mHelper = SettingsDatabases.open(getContext(), DATABASE_NAME);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        assertEquals(SettingsDatabases.getVersion(), db.getVersion());
+        return db;
+    }
+
+    /**
+     * Inserts a setting as the version stored it. The values are converted by the affinity
+     * of the value column.
+     */
+    private static long insertOldSetting(SQLiteDatabase db, int version, String key, int type,
+            Object value) {
+        ContentValues values = new ContentValues();
+        values.put(SettingsContract.KEY, key);
+        if (version < 5) {
+            values.put(SettingsContract.TYPE, getClassName(type));
+        } else {
+            values.put(SettingsContract.TYPE, type);
+        }
+
+        if (value instanceof Integer) {
+            values.put(SettingsContract.VALUE, (Integer) value);
+        } else if (value instanceof Float) {
+            values.put(SettingsContract.VALUE, (Float) value);
+        } else if (value instanceof Long) {
+            values.put(SettingsContract.VALUE, (Long) value);
+        } else if (value instanceof byte[]) {
+            values.put(SettingsContract.VALUE, (byte[]) value);
+        } else {
+            values.put(SettingsContract.VALUE, (String) value);
+        }
+        return db.insertOrThrow(SettingsDatabases.TABLE_SETTINGS, null, values);
+    }
+
+    /**
+     * Returns the class name stored as the type before version 5.
+     */
+    private static String getClassName(int type) {
+        switch (type) {
+            case Setting.TYPE_BOOLEAN:
+                return Boolean.class.getName();
+            case Setting.TYPE_FLOAT:
+                return Float.class.getName();
+            case Setting.TYPE_INTEGER:
+                return Integer.class.getName();
+            case Setting.TYPE_LONG:
+                return Long.class.getName();
+            case Setting.TYPE_STRING:
+                return String.class.getName();
+            default:
+                return HashSet.class.getName();
+        }
+    }
+
+    private static void addProperty(SQLiteDatabase db, String key, long value) {
+        db.execSQL("INSERT INTO " + SettingsDatabases.TABLE_PROPERTIES +
+                " (property_key, property_value) VALUES (?,?)", new Object[] {key, value});
+    }
+
+    private static void setProperty(SQLiteDatabase db, String key, long value) {
+        db.execSQL("UPDATE " + SettingsDatabases.TABLE_PROPERTIES +
+                " SET property_value=? WHERE property_key=?", new Object[] {value, key});
+    }
+
+    private static byte[] getValueBytes(SQLiteDatabase db, String key) {
+        Cursor cursor = db.query(SettingsDatabases.TABLE_SETTINGS,
+                new String[] {SettingsContract.VALUE}, SettingsContract.KEY + "=?",
+                new String[] {key}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getBlob(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long insertSetting(SQLiteDatabase db, Setting setting) {
+        return db.insertOrThrow(SettingsDatabases.TABLE_SETTINGS, null,
+                setting.toContentValues());
+    }
+
+    /**
+     * Serializes the object as the versions before 4 stored objects.
+     */
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(stream);
+        try {
+            output.writeObject(object);
+        } finally {
+            output.close();
+        }
+        return stream.toByteArray();
+    }
+}
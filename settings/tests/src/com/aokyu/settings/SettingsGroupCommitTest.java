@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2015 Yu AOKI
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package com.aokyu.settings;
+
+import com.aokyu.settings.provider.SettingsContract;
+import com.aokyu.settings.provider.SettingsProvider;
+import com.aokyu.settings.task.AbstractTask;
+import com.aokyu.settings.task.SerialExecutor;
+
+import android.content.ContentResolver;
+import android.test.ProviderTestCase2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests group commits of {@link Settings}.
+ * The tasks are recorded instead of being executed, so that each test decides when
+ * the window of a group commit ends.
+ */
+public class SettingsGroupCommitTest extends ProviderTestCase2<SettingsProvider> {
+
+    private static final long WINDOW_MILLIS = 60000;
+
+    /**
+     * The delay recorded for a task to be executed immediately.
+     */
+    private static final long NO_DELAY = -1;
+
+    private ContentResolver mContentResolver;
+    private RecordingExecutor mExecutor;
+    private SerialExecutor mDefaultExecutor;
+    private Settings mSettings;
+
+    public SettingsGroupCommitTest() {
+        super(SettingsProvider.class, SettingsContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContentResolver = getMockContentResolver();
+        // The provider keeps its database across test cases.
+        mContentResolver.delete(SettingsContract.CONTENT_URI, null, null);
+        mExecutor = new RecordingExecutor();
+        mDefaultExecutor = Settings.setExecutor(mExecutor);
+        mSettings = new Settings(getMockContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Settings.setGroupCommit(0, 0);
+        Settings.setExecutor(mDefaultExecutor);
+        mExecutor.destroy();
+        mSettings.destroy();
+        super.tearDown();
+    }
+
+    public void testGroupCommitWaitsForWindow() {
+        Settings.setGroupCommit(WINDOW_MILLIS, 0);
+        mSettings.edit().putInt("a", 1).apply();
+        mSettings.edit().putInt("b", 2).apply();
+
+        // The commits are merged into the group commit scheduled by the first one.
+        assertEquals(1, mExecutor.getTaskCount());
+        assertEquals(WINDOW_MILLIS, mExecutor.getDelay(0));
+        assertNull(SettingsLoader.load(mContentResolver, "a"));
+        assertEquals(2, mSettings.getInt("b", 0));
+
+        mExecutor.run(0);
+        assertEquals(1, SettingsLoader.load(mContentResolver, "a").getInt());
+        assertEquals(2, SettingsLoader.load(mContentResolver, "b").getInt());
+    }
+
+    public void testLastWriteWinsInGroupCommit() {
+        Settings.setGroupCommit(WINDOW_MILLIS, 0);
+        long sequence = SettingsLoader.loadSequence(mContentResolver).value;
+        mSettings.edit().putInt("a", 1).putInt("b", 1).apply();
+        mSettings.edit().putInt("a", 2).apply();
+        mSettings.edit().remove("b").putInt("c", 1).apply();
+        mSettings.edit().putInt("b", 3).apply();
+        mSettings.edit().remove("c").apply();
+
+        mExecutor.run(0);
+        assertEquals(2, SettingsLoader.load(mContentResolver, "a").getInt());
+        assertEquals(3, SettingsLoader.load(mContentResolver, "b").getInt());
+        assertNull(SettingsLoader.load(mContentResolver, "c"));
+        // Only the last edits of "a" and "b" have been written.
+        assertEquals(sequence + 2, SettingsLoader.loadSequence(mContentResolver).value);
+    }
+
+    public void testClearDiscardsEarlierEditsInGroupCommit() {
+        Settings.setGroupCommit(WINDOW_MILLIS, 0);
+        mSettings.edit().putInt("a", 1).apply();
+        mSettings.edit().clear().putInt("b", 1).apply();
+
+        mExecutor.run(0);
+        assertNull(SettingsLoader.load(mContentResolver, "a"));
+        assertEquals(1, SettingsLoader.load(mContentResolver, "b").getInt());
+    }
+
+    public void testGroupCommitIsAppliedAtMaxCommits() {
+        Settings.setGroupCommit(WINDOW_MILLIS, 2);
+        mSettings.edit().putInt("a", 1).apply();
+        assertEquals(1, mExecutor.getTaskCount());
+
+        mSettings.edit().putInt("b", 1).apply();
+        assertEquals(2, mExecutor.getTaskCount());
+        assertEquals(NO_DELAY, mExecutor.getDelay(1));
+
+        mExecutor.run(1);
+        assertEquals(1, SettingsLoader.load(mContentResolver, "a").getInt());
+        assertEquals(1, SettingsLoader.load(mContentResolver, "b").getInt());
+    }
+
+    public void testGroupCommitIsExecutedOnce() {
+        Settings.setGroupCommit(WINDOW_MILLIS, 2);
+        mSettings.edit().putInt("a", 1).apply();
+        mSettings.edit().putInt("b", 1).apply();
+        mExecutor.run(1);
+        long sequence = SettingsLoader.loadSequence(mContentResolver).value;
+
+        // The delayed task finds that the group commit has been taken, and must not take
+        // the next group commit either.
+        mSettings.edit().putInt("c", 1).apply();
+        assertEquals(3, mExecutor.getTaskCount());
+        mExecutor.run(0);
+        assertEquals(sequence, SettingsLoader.loadSequence(mContentResolver).value);
+        assertNull(SettingsLoader.load(mContentResolver, "c"));
+
+        mExecutor.run(2);
+        assertEquals(1, SettingsLoader.load(mContentResolver, "c").getInt());
+    }
+
+    public void testCommitTakesGroupCommit() {
+        Settings.setGroupCommit(WINDOW_MILLIS, 0);
+        mSettings.edit().putInt("a", 1).apply();
+        assertTrue(mSettings.edit().putInt("a", 2).commit());
+        assertEquals(2, SettingsLoader.load(mContentResolver, "a").getInt());
+        long sequence = SettingsLoader.loadSequence(mContentResolver).value;
+
+        // The applied commit must not overwrite the later commit.
+        mExecutor.run(0);
+        assertEquals(2, SettingsLoader.load(mContentResolver, "a").getInt());
+        assertEquals(sequence, SettingsLoader.loadSequence(mContentResolver).value);
+    }
+
+    /**
+     * The executor that records tasks instead of executing them.
+     */
+    private static final class RecordingExecutor extends SerialExecutor {
+
+        private final List<AbstractTask> mTasks = new ArrayList<AbstractTask>();
+        private final List<Long> mDelays = new ArrayList<Long>();
+
+        @Override
+        public synchronized String execute(AbstractTask task) {
+            return execute(task, NO_DELAY);
+        }
+
+        @Override
+        public synchronized String execute(AbstractTask task, long delayMillis) {
+            mTasks.add(task);
+            mDelays.add(delayMillis);
+            return String.valueOf(mTasks.size() - 1);
+        }
+
+        public synchronized int getTaskCount() {
+            return mTasks.size();
+        }
+
+        public synchronized long getDelay(int index) {
+            return mDelays.get(index);
+        }
+
+        /**
+         * Runs the recorded task on the calling thread.
+         */
+        public void run(int index) {
+            AbstractTask task;
+            synchronized (this) {
+                task = mTasks.get(index);
+            }
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015 Yu AOKI
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package com.aokyu.settings;
+
+import com.aokyu.settings.provider.SettingsContract;
+import com.aokyu.settings.provider.SettingsProvider;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+/**
+ * Tests that {@link SettingsCache} uses a snapshot file only if it is intact and the change
+ * log of the settings provider can bring it up to date, and loads all records otherwise.
+ * The snapshot holds a value that differs from the database, so the value read from
+ * the cache tells where it was loaded from.
+ */
+public class SettingsSnapshotTest extends ProviderTestCase2<SettingsProvider> {
+
+    /**
+     * The name of the snapshot file in the cache directory.
+     */
+    private static final String SNAPSHOT_FILE_NAME = "settings.snapshot";
+
+    /**
+     * The number of changes after which the change log has been compacted.
+     */
+    private static final int COMPACTING_CHANGES = 1100;
+
+    private static final String KEY = "key";
+    private static final String OTHER_KEY = "other";
+    private static final String DATABASE_VALUE = "database";
+    private static final String SNAPSHOT_VALUE = "snapshot";
+
+    private ContentResolver mContentResolver;
+    private SettingsSnapshot mSnapshot;
+    private SettingsCache mCache;
+
+    public SettingsSnapshotTest() {
+        super(SettingsProvider.class, SettingsContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContentResolver = getMockContentResolver();
+        // The provider keeps its database across test cases.
+        mContentResolver.delete(SettingsContract.CONTENT_URI, null, null);
+        File cacheDir = getMockContext().getCacheDir();
+        assertNotNull(cacheDir);
+        mSnapshot = new SettingsSnapshot(cacheDir);
+        mSnapshot.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.destroy();
+            mCache = null;
+        }
+        mSnapshot.delete();
+        super.tearDown();
+    }
+
+    public void testCurrentSnapshotIsUsed() {
+        long id = insert(KEY, DATABASE_VALUE);
+        writeSnapshot(SettingsLoader.loadSequence(mContentResolver), id);
+
+        assertEquals(SNAPSHOT_VALUE, loadValue());
+    }
+
+    public void testOutdatedSnapshotIsBroughtUpToDate() {
+        long id = insert(KEY, DATABASE_VALUE);
+        writeSnapshot(SettingsLoader.loadSequence(mContentResolver), id);
+        insert(OTHER_KEY, DATABASE_VALUE);
+
+        // Only the changes after the snapshot are read from the change log.
+        assertEquals(SNAPSHOT_VALUE, loadValue());
+        assertEquals(DATABASE_VALUE, mCache.get(OTHER_KEY).getValue());
+    }
+
+    public void testCorruptedSnapshotIsNotUsed() throws IOException {
+        long id = insert(KEY, DATABASE_VALUE);
+        writeSnapshot(SettingsLoader.loadSequence(mContentResolver), id);
+
+        // The last byte of the value precedes the checksum.
+        RandomAccessFile file = new RandomAccessFile(
+                new File(getMockContext().getCacheDir(), SNAPSHOT_FILE_NAME), "rw");
+        try {
+            long position = file.length() - 9;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        assertEquals(DATABASE_VALUE, loadValue());
+    }
+
+    public void testSnapshotOfAnotherEpochIsNotUsed() {
+        long id = insert(KEY, DATABASE_VALUE);
+        SettingsLoader.Sequence sequence = SettingsLoader.loadSequence(mContentResolver);
+        writeSnapshot(new SettingsLoader.Sequence(sequence.epoch + 1, sequence.value), id);
+
+        assertEquals(DATABASE_VALUE, loadValue());
+    }
+
+    public void testSnapshotAheadOfProviderIsNotUsed() {
+        long id = insert(KEY, DATABASE_VALUE);
+        SettingsLoader.Sequence sequence = SettingsLoader.loadSequence(mContentResolver);
+        writeSnapshot(new SettingsLoader.Sequence(sequence.epoch, sequence.value + 1), id);
+
+        assertEquals(DATABASE_VALUE, loadValue());
+    }
+
+    public void testSnapshotOlderThanChangeLogIsNotUsed() {
+        long id = insert(KEY, DATABASE_VALUE);
+        SettingsLoader.Sequence sequence = SettingsLoader.loadSequence(mContentResolver);
+        writeSnapshot(sequence, id);
+
+        for (int i = 0; i < COMPACTING_CHANGES; i++) {
+            insert(OTHER_KEY + i, DATABASE_VALUE);
+        }
+        assertTrue(SettingsLoader.loadOldestSequence(mContentResolver) > sequence.value);
+
+        assertEquals(DATABASE_VALUE, loadValue());
+    }
+
+    private long insert(String key, String value) {
+        Uri uri = mContentResolver.insert(SettingsContract.CONTENT_URI,
+                new Setting(key, value).toContentValues());
+        return ContentUris.parseId(uri);
+    }
+
+    private void writeSnapshot(SettingsLoader.Sequence sequence, long id) {
+        Setting setting = new Setting(KEY, SNAPSHOT_VALUE).withId(id);
+        assertTrue(mSnapshot.write(sequence, Collections.singletonList(setting)));
+    }
+
+    /**
+     * Returns the value of the setting after the initial loading of a new cache.
+     */
+    private Object loadValue() {
+        mCache = new SettingsCache(getMockContext(), false);
+        Setting setting = mCache.get(KEY);
+        assertNotNull(setting);
+        return setting.getValue();
+    }
+}
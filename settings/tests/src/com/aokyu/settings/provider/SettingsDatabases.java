@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015 Yu AOKI
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package com.aokyu.settings.provider;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Gives tests outside of this package access to the settings database.
+ */
+public final class SettingsDatabases {
+
+    public static final String TABLE_SETTINGS = SettingsProvider.DatabaseHelper.Tables.SETTINGS;
+    public static final String TABLE_PROPERTIES =
+            SettingsProvider.DatabaseHelper.Tables.PROPERTIES;
+    public static final String TABLE_CHANGES = SettingsProvider.DatabaseHelper.Tables.CHANGES;
+
+    private SettingsDatabases() {}
+
+    /**
+     * Opens the settings database with the given name, upgrading it if needed.
+     * The sets of strings are converted into the latest value format as well.
+     *
+     * @param context The context to open the database.
+     * @param databaseName The name of the database file.
+     * @return the helper that has opened the database.
+     */
+    public static SQLiteOpenHelper open(Context context, String databaseName) {
+        SettingsProvider.DatabaseHelper helper =
+                new SettingsProvider.DatabaseHelper(context, databaseName);
+        helper.migrateValueFormatIfNeeded();
+        return helper;
+    }
+
+    /**
+     * Returns the version of the settings database created by this library.
+     *
+     * @return the version of the settings database.
+     */
+    public static int getVersion() {
+        return SettingsProvider.DatabaseHelper.DATABASE_VERSION;
+    }
+
+    /**
+     * Returns the next row ID of the settings table that SQLite will assign.
+     *
+     * @param db The settings database.
+     * @return the next row ID, or 1 if the table has never had rows.
+     */
+    public static long getNextSettingId(SQLiteDatabase db) {
+        SQLiteStatement statement = db.compileStatement(
+                "SELECT IFNULL(MAX(seq),0)+1 FROM sqlite_sequence" +
+                " WHERE name='" + TABLE_SETTINGS + "'");
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Returns the sequence of the last committed change.
+     *
+     * @param helper The helper returned by {@link #open(Context, String)}.
+     * @return the sequence of the last committed change.
+     */
+    public static long getChangeSequence(SQLiteOpenHelper helper) {
+        SettingsProvider.DatabaseHelper databaseHelper = (SettingsProvider.DatabaseHelper) helper;
+        return databaseHelper.getChangeSequence(databaseHelper.getReadableDatabase());
+    }
+
+    /**
+     * Returns the oldest sequence that clients can catch up from with the change log.
+     *
+     * @param helper The helper returned by {@link #open(Context, String)}.
+     * @return the oldest sequence of the change log.
+     */
+    public static long getOldestChangeSequence(SQLiteOpenHelper helper) {
+        SettingsProvider.DatabaseHelper databaseHelper = (SettingsProvider.DatabaseHelper) helper;
+        return databaseHelper.getOldestChangeSequence(databaseHelper.getReadableDatabase());
+    }
+
+    /**
+     * Returns the epoch of the database.
+     *
+     * @param helper The helper returned by {@link #open(Context, String)}.
+     * @return the epoch of the database.
+     */
+    public static long getEpoch(SQLiteOpenHelper helper) {
+        SettingsProvider.DatabaseHelper databaseHelper = (SettingsProvider.DatabaseHelper) helper;
+        return databaseHelper.getEpoch(databaseHelper.getReadableDatabase());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015 Yu AOKI
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package com.aokyu.settings.provider;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests {@link StringSetCodec}.
+ */
+public class StringSetCodecTest extends TestCase {
+
+    public void testRoundTrip() {
+        Set<String> values = newSet("", "a", "\u65e5\u672c\u8a9e", "\ud83d\ude00", null);
+        byte[] bytes = StringSetCodec.encode(values);
+        assertTrue(StringSetCodec.isEncoded(bytes));
+        assertFalse(StringSetCodec.isSerialized(bytes));
+        assertEquals(values, StringSetCodec.decode(bytes));
+    }
+
+    public void testRoundTripOfEmptySet() {
+        byte[] bytes = StringSetCodec.encode(new HashSet<String>());
+        assertEquals(new HashSet<String>(), StringSetCodec.decode(bytes));
+    }
+
+    public void testRoundTripOfLongString() {
+        char[] chars = new char[100000];
+        Arrays.fill(chars, 'x');
+        Set<String> values = newSet(new String(chars));
+        assertEquals(values, StringSetCodec.decode(StringSetCodec.encode(values)));
+    }
+
+    public void testCanEncode() {
+        assertTrue(StringSetCodec.canEncode(newSet("a", null)));
+        assertTrue(StringSetCodec.canEncode(new HashSet<Object>()));
+        assertFalse(StringSetCodec.canEncode(new HashSet<Object>(Arrays.asList("a", 1))));
+        assertFalse(StringSetCodec.canEncode(new ArrayList<String>()));
+        assertFalse(StringSetCodec.canEncode("a"));
+        assertFalse(StringSetCodec.canEncode(null));
+    }
+
+    public void testDecodeTruncatedBytes() {
+        byte[] bytes = StringSetCodec.encode(newSet("a", "bc", null));
+        for (int length = 0; length < bytes.length; length++) {
+            assertNull("length " + length,
+                    StringSetCodec.decode(Arrays.copyOf(bytes, length)));
+        }
+    }
+
+    public void testDecodeOversizedCount() {
+        assertNull(StringSetCodec.decode(newHeader(Integer.MAX_VALUE).array()));
+
+        // Each entry needs at least four bytes for its length.
+        ByteBuffer buffer = newHeader(3).putInt(-1).putInt(-1);
+        assertNull(StringSetCodec.decode(buffer.array()));
+    }
+
+    public void testDecodeNegativeCount() {
+        assertNull(StringSetCodec.decode(newHeader(-1).array()));
+    }
+
+    public void testDecodeOversizedLength() {
+        ByteBuffer buffer = ByteBuffer.allocate(14);
+        buffer.putShort((short) 0x5353).put((byte) 1).putInt(1).putInt(100).put(new byte[3]);
+        assertNull(StringSetCodec.decode(buffer.array()));
+    }
+
+    public void testDecodeUnknownVersion() {
+        byte[] bytes = StringSetCodec.encode(newSet("a"));
+        bytes[2] = 2;
+        assertNull(StringSetCodec.decode(bytes));
+    }
+
+    public void testDecodeUnknownBytes() {
+        assertNull(StringSetCodec.decode(null));
+        assertNull(StringSetCodec.decode(new byte[0]));
+        assertNull(StringSetCodec.decode(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+    }
+
+    public void testDecodeSerializedSet() throws IOException {
+        Set<String> values = newSet("a", "b", null);
+        byte[] bytes = serialize(values);
+        assertTrue(StringSetCodec.isSerialized(bytes));
+        assertFalse(StringSetCodec.isEncoded(bytes));
+        assertEquals(values, StringSetCodec.decode(bytes));
+    }
+
+    public void testDecodeSerializedObjectsOtherThanStringSets() throws IOException {
+        assertNull(StringSetCodec.decode(serialize("a")));
+        assertNull(StringSetCodec.decode(serialize(new HashSet<Object>(Arrays.asList(1, 2)))));
+        assertNull(StringSetCodec.decode(serialize(new ArrayList<String>())));
+    }
+
+    public void testDecodeTruncatedSerializedSet() throws IOException {
+        byte[] bytes = serialize(newSet("a", "b"));
+        assertNull(StringSetCodec.decode(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    private static Set<String> newSet(String... values) {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+
+    /**
+     * Returns a buffer that holds only the header for the count of entries.
+     */
+    private static ByteBuffer newHeader(int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(15);
+        buffer.putShort((short) 0x5353).put((byte) 1).putInt(count);
+        return buffer;
+    }
+
+    /**
+     * Serializes the object as sets of strings were stored before the codec.
+     */
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(stream);
+        try {
+            output.writeObject(object);
+        } finally {
+            output.close();
+        }
+        return stream.toByteArray();
+    }
+}